@@ -0,0 +1,168 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only copy of the event properties of a container. The copy is taken
+ * holding the application lock the container is modified with, and can then
+ * be read in another thread, e.g. encoded in the background while the client
+ * side is loading the JavaScript.
+ *
+ * @author miku
+ */
+final class ContainerSnapshot extends ReadOnlyIndexedContainer {
+
+    /**
+     * The copied properties.
+     */
+    private final List<Object> propertyIds = new ArrayList<Object>();
+
+    /**
+     * Key = property id, Value = the index of the property values.
+     */
+    private final Map<Object, Integer> propertyIndexes
+            = new HashMap<Object, Integer>();
+
+    private final Map<Object, Class<?>> types
+            = new HashMap<Object, Class<?>>();
+
+    private final List<Object> itemIds = new ArrayList<Object>();
+
+    /**
+     * Key = item id, Value = the property values.
+     */
+    private final Map<Object, Object[]> items = new HashMap<Object, Object[]>();
+
+    /**
+     * Copy the items of a container.
+     *
+     * @param source The container.
+     * @param eventPropertyIds The properties to copy, if the container has
+     * them.
+     * @param filter The filter the copied items must pass, or null to copy
+     * all the items.
+     */
+    ContainerSnapshot(Container source, Collection<?> eventPropertyIds,
+            Container.Filter filter) {
+        Collection<?> sourcePropertyIds = source.getContainerPropertyIds();
+        for (Object propertyId : eventPropertyIds) {
+            if (sourcePropertyIds.contains(propertyId)
+                    && !propertyIndexes.containsKey(propertyId)) {
+                propertyIndexes.put(propertyId, propertyIds.size());
+                propertyIds.add(propertyId);
+                types.put(propertyId, source.getType(propertyId));
+            }
+        }
+
+        for (Object id : source.getItemIds()) {
+            Item item = source.getItem(id);
+            if (filter != null && !filter.passesFilter(id, item)) {
+                continue;
+            }
+            Object[] values = new Object[propertyIds.size()];
+            for (int p = 0; p < values.length; p++) {
+                Property property = item.getItemProperty(propertyIds.get(p));
+                values[p] = property == null ? null : property.getValue();
+            }
+            itemIds.add(id);
+            items.put(id, values);
+        }
+    }
+
+    @Override
+    public Item getItem(Object itemId) {
+        Object[] values = items.get(itemId);
+        return values == null ? null : new SnapshotItem(values);
+    }
+
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return Collections.unmodifiableList(propertyIds);
+    }
+
+    @Override
+    public Collection<?> getItemIds() {
+        return Collections.unmodifiableList(itemIds);
+    }
+
+    @Override
+    public Class<?> getType(Object propertyId) {
+        return types.get(propertyId);
+    }
+
+    @Override
+    public int size() {
+        return itemIds.size();
+    }
+
+    @Override
+    public boolean containsId(Object itemId) {
+        return items.containsKey(itemId);
+    }
+
+    /**
+     * Get the index of an item. Scans the items.
+     */
+    @Override
+    public int indexOfId(Object itemId) {
+        return itemIds.indexOf(itemId);
+    }
+
+    @Override
+    public Object getIdByIndex(int index) {
+        return itemIds.get(index);
+    }
+
+    /**
+     * A read-only item of the copied values.
+     */
+    private class SnapshotItem implements Item {
+
+        private final Object[] values;
+
+        SnapshotItem(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Property getItemProperty(Object id) {
+            Integer index = propertyIndexes.get(id);
+            if (index == null) {
+                return null;
+            }
+            Object value = values[index];
+            Class<Object> type = (Class<Object>) (value == null
+                    ? Object.class : value.getClass());
+            return new ObjectProperty<Object>(value, type, true);
+        }
+
+        @Override
+        public Collection<?> getItemPropertyIds() {
+            return getContainerPropertyIds();
+        }
+
+        @Override
+        public boolean addItemProperty(Object id, Property property) {
+            throw new UnsupportedOperationException(
+                    "Snapshot items are read-only.");
+        }
+
+        @Override
+        public boolean removeItemProperty(Object id) {
+            throw new UnsupportedOperationException(
+                    "Snapshot items are read-only.");
+        }
+
+    }
+
+}
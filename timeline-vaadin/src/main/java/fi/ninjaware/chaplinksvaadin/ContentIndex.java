@@ -0,0 +1,212 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the event contents. Maps the words of the contents to
+ * the handles of the events containing them, so searching doesn't read the
+ * event container. The events are indexed one by one, and an event whose
+ * content hasn't changed is not indexed again.
+ *
+ * @author miku
+ */
+class ContentIndex implements Serializable {
+
+    /**
+     * Key = word in lower case, Value = handles of the events containing it.
+     * Sorted for prefix searches.
+     */
+    private final TreeMap<String, Set<Integer>> postings
+            = new TreeMap<String, Set<Integer>>();
+
+    /**
+     * The indexed contents. Key = handle.
+     */
+    private final Map<Integer, String> contents
+            = new HashMap<Integer, String>();
+
+    /**
+     * The event starts in milliseconds, for ordering the results. Key =
+     * handle.
+     */
+    private final Map<Integer, Long> starts = new HashMap<Integer, Long>();
+
+    /**
+     * Index an event. Nothing is done if the content is the same as
+     * indexed before.
+     *
+     * @param handle The event handle.
+     * @param start Event start in milliseconds.
+     * @param content The event content.
+     */
+    void update(int handle, long start, String content) {
+        starts.put(handle, start);
+
+        String indexed = contents.put(handle, content);
+        if (content.equals(indexed)) {
+            return;
+        }
+        if (indexed != null) {
+            removePostings(handle, indexed);
+        }
+        for (String word : words(content)) {
+            Set<Integer> handles = postings.get(word);
+            if (handles == null) {
+                handles = new HashSet<Integer>();
+                postings.put(word, handles);
+            }
+            handles.add(handle);
+        }
+    }
+
+    /**
+     * Remove an event, if it is indexed.
+     *
+     * @param handle The event handle.
+     */
+    void remove(int handle) {
+        String indexed = contents.remove(handle);
+        if (indexed != null) {
+            removePostings(handle, indexed);
+            starts.remove(handle);
+        }
+    }
+
+    /**
+     * Remove the events not in the given set.
+     *
+     * @param handles The handles of the events to keep.
+     */
+    void retain(Set<Integer> handles) {
+        Iterator<Map.Entry<Integer, String>> it
+                = contents.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, String> entry = it.next();
+            if (!handles.contains(entry.getKey())) {
+                removePostings(entry.getKey(), entry.getValue());
+                starts.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+        contents.clear();
+        starts.clear();
+    }
+
+    /**
+     * Find the events containing all the words of the query. The last word
+     * matches the beginnings of words, so partially typed queries find
+     * results.
+     *
+     * @param query The query.
+     * @return The event handles sorted by the event start.
+     */
+    List<Integer> search(String query) {
+        List<String> words = words(query);
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Collection<Integer>> matches
+                = new ArrayList<Collection<Integer>>();
+        for (int i = 0; i < words.size() - 1; i++) {
+            Set<Integer> handles = postings.get(words.get(i));
+            if (handles == null) {
+                return Collections.emptyList();
+            }
+            matches.add(handles);
+        }
+        String prefix = words.get(words.size() - 1);
+        SortedMap<String, Set<Integer>> prefixed = postings.subMap(prefix,
+                prefix + Character.MAX_VALUE);
+        Set<Integer> prefixMatches = new HashSet<Integer>();
+        for (Set<Integer> handles : prefixed.values()) {
+            prefixMatches.addAll(handles);
+        }
+        matches.add(prefixMatches);
+
+        // Intersect starting from the smallest set.
+        Collections.sort(matches, new Comparator<Collection<Integer>>() {
+
+            @Override
+            public int compare(Collection<Integer> o1,
+                    Collection<Integer> o2) {
+                return o1.size() - o2.size();
+            }
+
+        });
+        List<Integer> result = new ArrayList<Integer>(matches.get(0));
+        for (int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+            result.retainAll(matches.get(i));
+        }
+
+        Collections.sort(result, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long s1 = starts.get(o1), s2 = starts.get(o2);
+                return s1 < s2 ? -1 : (s1 > s2 ? 1 : o1 - o2);
+            }
+
+        });
+        return result;
+    }
+
+    private void removePostings(int handle, String content) {
+        for (String word : words(content)) {
+            Set<Integer> handles = postings.get(word);
+            if (handles != null) {
+                handles.remove(handle);
+                if (handles.isEmpty()) {
+                    postings.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split a content into words. HTML tags are left out, and the words are
+     * in lower case.
+     *
+     * @param content The content.
+     * @return The distinct words in order.
+     */
+    private static List<String> words(String content) {
+        String text = content.replaceAll("<[^>]*>", " ")
+                .toLowerCase(Locale.ENGLISH);
+        List<String> words = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                String word = text.substring(start, i);
+                if (seen.add(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+}
@@ -0,0 +1,377 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.Application;
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Resource;
+import com.vaadin.ui.Alignment;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The content search and the lazily loaded contents of a timeline. The index
+ * of the contents is built on the first search, and kept up to date with the
+ * changes the container listener of the timeline sees, item by item where
+ * the container tells which items changed.
+ *
+ * @author miku
+ */
+class ContentSearch implements Serializable {
+
+    private static final Property[] NO_PROPERTIES = new Property[0];
+
+    private final Timeline timeline;
+
+    /**
+     * The words of the event contents, for searching.
+     */
+    private final ContentIndex contentIndex = new ContentIndex();
+
+    /**
+     * The container version the content index is up to date with, apart
+     * from the changes tracked by the container listener, or -1 if the
+     * index hasn't been built.
+     */
+    private long indexedVersion = -1;
+
+    /**
+     * The items read for the content index, with their content and start
+     * properties whose value changes can be listened to. Key = item id.
+     */
+    private final Map<Object, Property[]> trackedItems
+            = new HashMap<Object, Property[]>();
+
+    /**
+     * The item ids of the tracked properties, for finding the item of a
+     * property value change.
+     */
+    private final Map<Property, Object> trackedProperties
+            = new HashMap<Property, Object>();
+
+    /**
+     * The items whose properties changed since the content index was
+     * updated.
+     */
+    private final Set<Object> changedItemIds = new HashSet<Object>();
+
+    /**
+     * True, if items were added or removed since the content index was
+     * updated. Set by the threads writing the events, too.
+     */
+    private volatile boolean itemSetChanged;
+
+    /**
+     * True, if the content index must be built again, because the changes
+     * couldn't be tracked item by item.
+     */
+    private volatile boolean contentIndexStale;
+
+    /**
+     * Handles of the events whose full content the client has requested.
+     */
+    private final List<Integer> requestedContents = new ArrayList<Integer>();
+
+    ContentSearch(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Forget the index, when the event data source is replaced.
+     */
+    void clear() {
+        contentIndex.clear();
+        resetContentTracking();
+        indexedVersion = -1;
+    }
+
+    /**
+     * Note a change the container listener saw, before the container version
+     * is increased for it. The index keeps up with such changes item by
+     * item, so it isn't built again for them.
+     *
+     * @param containerVersion The container version before the change.
+     */
+    void eventsChanged(long containerVersion) {
+        if (indexedVersion == containerVersion) {
+            indexedVersion++;
+        }
+    }
+
+    /**
+     * Note that items were added to or removed from the container.
+     */
+    void itemSetChanged() {
+        itemSetChanged = true;
+    }
+
+    /**
+     * Note that the properties of the container changed, so the index must
+     * be built again.
+     */
+    void propertySetChanged() {
+        contentIndexStale = true;
+    }
+
+    /**
+     * Note a property value change. A change of a content or start is
+     * indexed again item by item. Other properties matter only when the
+     * filter is applied by the timeline; the item of such a change isn't
+     * known, so the index is built again.
+     *
+     * @param property The changed property.
+     */
+    void valueChanged(Property property) {
+        Application application = timeline.getApplication();
+        if (application == null || !Thread.holdsLock(application)) {
+            contentIndexStale = true;
+            return;
+        }
+        Object id = trackedProperties.get(property);
+        if (id != null) {
+            changedItemIds.add(id);
+        } else if (timeline.getLocalFilter() != null) {
+            contentIndexStale = true;
+        }
+    }
+
+    /**
+     * Find the events whose content contains all the words of the query.
+     *
+     * @param query The query.
+     * @return The handles of the events sorted by the event start.
+     */
+    List<Integer> search(String query) {
+        updateContentIndex();
+        return contentIndex.search(query);
+    }
+
+    /**
+     * Index the content of an event for searching.
+     *
+     * @param handle The event handle.
+     * @param start Event start in milliseconds.
+     * @param item The event item.
+     */
+    private void indexContent(int handle, long start, Item item) {
+        contentIndex.update(handle, start, getContent(item));
+    }
+
+    /**
+     * Get the full content of an event, with templated content expanded.
+     *
+     * @param item The event item.
+     * @return The content.
+     */
+    private String getContent(Item item) {
+        Object content = item.getItemProperty(
+                timeline.getEventContentPropertyId()).getValue();
+        if (content instanceof TemplateContent) {
+            return EventEncoder.expandTemplateContent(
+                    timeline.getContentTemplates(),
+                    (TemplateContent) content);
+        }
+        return content == null ? "" : content.toString();
+    }
+
+    /**
+     * Bring the content index up to date without serializing the events.
+     * After the events or the filter are replaced, all the events are read
+     * again. Otherwise only the items the container listener saw added,
+     * removed or changed are indexed again; the added and removed items are
+     * found by comparing the item ids with the ids read before.
+     */
+    private void updateContentIndex() {
+        long containerVersion = timeline.getContainerVersion();
+        if (indexedVersion != containerVersion || contentIndexStale) {
+            rebuildContentIndex();
+        } else {
+            Container events = timeline.getEventDataSource();
+            if (itemSetChanged) {
+                itemSetChanged = false;
+                Set<Object> removed = new HashSet<Object>(
+                        trackedItems.keySet());
+                for (Object id : events.getItemIds()) {
+                    if (!removed.remove(id)) {
+                        Item item = events.getItem(id);
+                        trackItem(id, item);
+                        indexItem(id, item);
+                    }
+                }
+                for (Object id : removed) {
+                    untrackItem(id);
+                    unindexItem(id);
+                }
+            }
+            for (Object id : changedItemIds) {
+                Item item = events.getItem(id);
+                if (item != null) {
+                    indexItem(id, item);
+                } else {
+                    untrackItem(id);
+                    unindexItem(id);
+                }
+            }
+            changedItemIds.clear();
+        }
+        indexedVersion = containerVersion;
+    }
+
+    /**
+     * Index all the events, without indexing again the contents that
+     * haven't changed.
+     */
+    private void rebuildContentIndex() {
+        resetContentTracking();
+        Container events = timeline.getEventDataSource();
+        Set<Integer> indexed = new HashSet<Integer>();
+        for (Object id : events.getItemIds()) {
+            Item item = events.getItem(id);
+            trackItem(id, item);
+            Integer handle = indexItem(id, item);
+            if (handle != null) {
+                indexed.add(handle);
+            }
+        }
+        contentIndex.retain(indexed);
+    }
+
+    /**
+     * Index the content of an item, or remove it from the index if the
+     * item is filtered out or has no start.
+     *
+     * @param id The item id.
+     * @param item The item.
+     * @return The handle of the event, or null if it wasn't indexed.
+     */
+    private Integer indexItem(Object id, Item item) {
+        Container.Filter filter = timeline.getLocalFilter();
+        Date startDate = (Date) item.getItemProperty(
+                timeline.getEventStartPropertyId()).getValue();
+        if (startDate == null
+                || (filter != null && !filter.passesFilter(id, item))) {
+            unindexItem(id);
+            return null;
+        }
+        int handle = timeline.handles().getHandle(id);
+        indexContent(handle, startDate.getTime(), item);
+        return handle;
+    }
+
+    private void unindexItem(Object id) {
+        Integer handle = timeline.handles().findHandle(id);
+        if (handle != null) {
+            contentIndex.remove(handle);
+        }
+    }
+
+    /**
+     * Forget the tracked items and changes, before reading all the events.
+     */
+    private void resetContentTracking() {
+        contentIndexStale = false;
+        itemSetChanged = false;
+        changedItemIds.clear();
+        trackedItems.clear();
+        trackedProperties.clear();
+    }
+
+    /**
+     * Remember an item read for the content index, and its content and
+     * start properties, so their value changes are mapped to the item. Only
+     * the properties the container notifies of are kept; other containers,
+     * like {@link EventStore}, create them on each access. The shared event
+     * data isn't listened to, so its items aren't tracked.
+     */
+    private void trackItem(Object id, Item item) {
+        if (timeline.getSharedEventData() != null) {
+            return;
+        }
+        if (!(timeline.getEventDataSource()
+                instanceof Property.ValueChangeNotifier)) {
+            trackedItems.put(id, NO_PROPERTIES);
+            return;
+        }
+        List<Property> properties = new ArrayList<Property>(2);
+        for (Object propertyId : new Object[]{
+            timeline.getEventContentPropertyId(),
+            timeline.getEventStartPropertyId()}) {
+            Property property = item.getItemProperty(propertyId);
+            if (property instanceof Property.ValueChangeNotifier) {
+                properties.add(property);
+                trackedProperties.put(property, id);
+            }
+        }
+        trackedItems.put(id, properties.toArray(
+                new Property[properties.size()]));
+    }
+
+    private void untrackItem(Object id) {
+        Property[] properties = trackedItems.remove(id);
+        if (properties != null) {
+            for (Property property : properties) {
+                trackedProperties.remove(property);
+            }
+        }
+    }
+
+    /**
+     * Queue the full content of an event to be sent, when the contents are
+     * loaded lazily.
+     *
+     * @param handle The event handle.
+     */
+    void requestContent(int handle) {
+        requestedContents.add(handle);
+    }
+
+    /**
+     * Paint the full contents of the events the client has requested, as
+     * pairs of handles and contents.
+     *
+     * @param target The paint target.
+     * @throws PaintException if the paint operation fails.
+     */
+    void paintRequestedContents(PaintTarget target) throws PaintException {
+        Container events = timeline.getEventDataSource();
+        List<String> contents = new ArrayList<String>();
+        for (int handle : requestedContents) {
+            Object itemId = timeline.handles().getItemId(handle);
+            Item item = itemId != null && events != null
+                    ? events.getItem(itemId) : null;
+            if (item == null) {
+                continue;
+            }
+
+            contents.add(String.valueOf(handle));
+            contents.add(getContent(item));
+
+            Property icon = item.getItemProperty(
+                    timeline.getEventIconPropertyId());
+            if (icon != null && icon.getValue() != null) {
+                target.addAttribute(ICON_PREFIX.v + handle,
+                        (Resource) icon.getValue());
+            }
+            Property alignment = item.getItemProperty(
+                    timeline.getEventIconAlignmentPropertyId());
+            if (alignment != null && alignment.getValue() != null) {
+                target.addAttribute(ICONALIGN_PREFIX.v + handle,
+                        ((Alignment) alignment.getValue()).getBitMask());
+            }
+        }
+        requestedContents.clear();
+
+        target.addAttribute(CONTENTS.v,
+                contents.toArray(new String[contents.size()]));
+    }
+
+}
@@ -0,0 +1,141 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The events of a container encoded for the client side. Immutable, so one
+ * encoding can be used by the timelines of several sessions. The order in
+ * which the events are sent and the events actually sent are up to each
+ * timeline.
+ *
+ * @author miku
+ */
+class EncodedEvents implements Serializable {
+
+    /**
+     * The version of the encoded data.
+     */
+    final long version;
+
+    /**
+     * The field map of the events. Key = container property id, Value =
+     * field name.
+     */
+    final Map<Object, String> fields;
+
+    /**
+     * The most common value of each defaultable field. Key = field name.
+     */
+    final Map<String, String> columnDefaults;
+
+    /**
+     * The group defaults differing from the column defaults. Key = group,
+     * Value = defaults keyed by field name.
+     */
+    final Map<String, Map<String, String>> groupDefaults;
+
+    /**
+     * The events in the container order.
+     */
+    final List<SerializedEvent> events;
+
+    /**
+     * The event groups in the order the client shows them.
+     */
+    final List<String> groups;
+
+    /**
+     * The events sorted by start, created when first needed.
+     */
+    private SerializedEventIndex index;
+
+    /**
+     * The events of each group sorted by start, created when first needed.
+     * Key = group.
+     */
+    private Map<String, SerializedEventIndex> groupIndexes;
+
+    EncodedEvents(long version, Map<Object, String> fields,
+            Map<String, String> columnDefaults,
+            Map<String, Map<String, String>> groupDefaults,
+            List<SerializedEvent> events) {
+        this.version = version;
+        this.fields = Collections.unmodifiableMap(
+                new LinkedHashMap<Object, String>(fields));
+        this.columnDefaults = Collections.unmodifiableMap(
+                new HashMap<String, String>(columnDefaults));
+        Map<String, Map<String, String>> defaults
+                = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> entry
+                : groupDefaults.entrySet()) {
+            defaults.put(entry.getKey(),
+                    Collections.unmodifiableMap(entry.getValue()));
+        }
+        this.groupDefaults = Collections.unmodifiableMap(defaults);
+        this.events = Collections.unmodifiableList(
+                new ArrayList<SerializedEvent>(events));
+
+        // The client orders the groups by name.
+        Set<String> names = new TreeSet<String>();
+        for (SerializedEvent event : events) {
+            if (!event.group.isEmpty()) {
+                names.add(event.group);
+            }
+        }
+        this.groups = Collections.unmodifiableList(
+                new ArrayList<String>(names));
+    }
+
+    /**
+     * Get the events sorted by start, for windowed loading.
+     *
+     * @return The index.
+     */
+    synchronized SerializedEventIndex getIndex() {
+        if (index == null) {
+            index = new SerializedEventIndex(events);
+        }
+        return index;
+    }
+
+    /**
+     * Get the events of a group sorted by start. The events are bucketed by
+     * group for all the groups at once.
+     *
+     * @param group The group, or an empty string for the events without a
+     * group.
+     * @return The index. Empty, if the group has no events.
+     */
+    synchronized SerializedEventIndex getGroupIndex(String group) {
+        if (groupIndexes == null) {
+            Map<String, List<SerializedEvent>> buckets
+                    = new HashMap<String, List<SerializedEvent>>();
+            for (SerializedEvent event : events) {
+                List<SerializedEvent> bucket = buckets.get(event.group);
+                if (bucket == null) {
+                    bucket = new ArrayList<SerializedEvent>();
+                    buckets.put(event.group, bucket);
+                }
+                bucket.add(event);
+            }
+            groupIndexes = new HashMap<String, SerializedEventIndex>();
+            for (Map.Entry<String, List<SerializedEvent>> bucket
+                    : buckets.entrySet()) {
+                groupIndexes.put(bucket.getKey(),
+                        new SerializedEventIndex(bucket.getValue()));
+            }
+        }
+        SerializedEventIndex groupIndex = groupIndexes.get(group);
+        return groupIndex != null ? groupIndex : new SerializedEventIndex(
+                Collections.<SerializedEvent>emptyList());
+    }
+
+}
@@ -0,0 +1,607 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.terminal.Resource;
+import com.vaadin.terminal.gwt.server.JsonPaintTarget;
+import com.vaadin.ui.Alignment;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventType;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.ContentTemplate;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes the events of a container for the client side. The encoder keeps
+ * its own copy of the timeline configuration, so the events can be encoded
+ * outside the request that created it, e.g. from a
+ * {@link ContainerSnapshot} while the client side is loading the
+ * JavaScript.
+ *
+ * @author miku
+ */
+final class EventEncoder {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(EventEncoder.class);
+
+    /**
+     * The fields that are left out of the events having the default value.
+     */
+    private static final Set<String> DEFAULTABLE_FIELDS
+            = new HashSet<String>(Arrays.asList(
+                            EventFields.CLASSNAME.toString(),
+                            EventFields.EDITABLE.toString(),
+                            EventFields.TYPE.toString(), LANE.toString()));
+
+    private final Object eventStartPropertyId;
+
+    private final Object eventEndPropertyId;
+
+    private final Object eventContentPropertyId;
+
+    private final Object eventGroupPropertyId;
+
+    private final Object eventClassNamePropertyId;
+
+    private final Object eventEditablePropertyId;
+
+    private final Object eventTypePropertyId;
+
+    private final Object eventIconPropertyId;
+
+    private final Object eventIconAlignmentPropertyId;
+
+    private final boolean lazyContent;
+
+    private final int contentPreviewLength;
+
+    private final boolean serverStacking;
+
+    /**
+     * The content templates. Key = template id.
+     */
+    private final Map<String, String> contentTemplates;
+
+    /**
+     * The filter the events must pass, or null if they are all encoded.
+     */
+    private final Container.Filter filter;
+
+    private final EventHandles handles;
+
+    /**
+     * Create an encoder with the current configuration of a timeline.
+     *
+     * @param timeline The timeline.
+     * @param filter The filter the events must pass, or null if the events
+     * are already filtered.
+     * @param handles The event handles.
+     * @param contentTemplates The content templates, copied.
+     */
+    EventEncoder(Timeline timeline, Container.Filter filter,
+            EventHandles handles, Map<String, String> contentTemplates) {
+        eventStartPropertyId = timeline.getEventStartPropertyId();
+        eventEndPropertyId = timeline.getEventEndPropertyId();
+        eventContentPropertyId = timeline.getEventContentPropertyId();
+        eventGroupPropertyId = timeline.getEventGroupPropertyId();
+        eventClassNamePropertyId = timeline.getEventClassNamePropertyId();
+        eventEditablePropertyId = timeline.getEventEditablePropertyId();
+        eventTypePropertyId = timeline.getEventTypePropertyId();
+        eventIconPropertyId = timeline.getEventIconPropertyId();
+        eventIconAlignmentPropertyId
+                = timeline.getEventIconAlignmentPropertyId();
+        lazyContent = timeline.isLazyContent();
+        contentPreviewLength = timeline.getContentPreviewLength();
+        serverStacking = timeline.isServerStacking();
+        this.filter = filter;
+        this.handles = handles;
+        this.contentTemplates = new HashMap<String, String>(contentTemplates);
+    }
+
+    /**
+     * Get the ids of the properties the events are encoded from.
+     *
+     * @return The property ids.
+     */
+    List<Object> getPropertyIds() {
+        return Arrays.asList(eventStartPropertyId, eventEndPropertyId,
+                eventContentPropertyId, eventGroupPropertyId,
+                eventClassNamePropertyId, eventEditablePropertyId,
+                eventTypePropertyId, eventIconPropertyId,
+                eventIconAlignmentPropertyId);
+    }
+
+    /**
+     * Encode the events of a container. The container mustn't change while
+     * it's read.
+     *
+     * @param source The events.
+     * @param version The version of the data.
+     * @return The encoded events.
+     */
+    EncodedEvents encode(Container.Indexed source, long version) {
+        Map<Object, String> serializedFields
+                = new LinkedHashMap<Object, String>();
+
+        boolean iconFieldExists = false, iconAlignmentFieldExists = false;
+
+        // Required fields
+        serializedFields.put(eventStartPropertyId,
+                EventFields.START.toString());
+        serializedFields.put(eventContentPropertyId,
+                EventFields.CONTENT.toString());
+
+        // Optional fields
+        Collection<?> propIds = source.getContainerPropertyIds();
+        if (propIds.contains(eventEndPropertyId)) {
+            serializedFields.put(eventEndPropertyId,
+                    EventFields.END.toString());
+        }
+        if (propIds.contains(eventGroupPropertyId)) {
+            serializedFields.put(eventGroupPropertyId,
+                    EventFields.GROUP.toString());
+        }
+        if (propIds.contains(eventClassNamePropertyId)) {
+            serializedFields.put(eventClassNamePropertyId,
+                    EventFields.CLASSNAME.toString());
+        }
+        if (propIds.contains(eventEditablePropertyId)) {
+            serializedFields.put(eventEditablePropertyId,
+                    EventFields.EDITABLE.toString());
+        }
+        if (propIds.contains(eventTypePropertyId)) {
+            serializedFields.put(eventTypePropertyId,
+                    EventFields.TYPE.toString());
+        }
+        if (propIds.contains(eventIconPropertyId)) {
+            iconFieldExists = true;
+        }
+        if (propIds.contains(eventIconAlignmentPropertyId)) {
+            iconAlignmentFieldExists = true;
+        }
+
+        // Resolve the property types once instead of once per event.
+        Object[] propertyIds = serializedFields.keySet().toArray();
+
+        // The stacking lane is computed, not read from the container, so it
+        // comes after the properties.
+        if (serverStacking) {
+            serializedFields.put(LANE, LANE.toString());
+        }
+        Class<?>[] types = new Class<?>[propertyIds.length];
+        int endField = -1, groupField = -1;
+        for (int p = 0; p < propertyIds.length; p++) {
+            types[p] = source.getType(propertyIds[p]);
+            if (propertyIds[p].equals(eventEndPropertyId)) {
+                endField = p;
+            } else if (propertyIds[p].equals(eventGroupPropertyId)) {
+                groupField = p;
+            }
+        }
+        boolean typeFieldExists = propIds.contains(eventTypePropertyId);
+
+        // Iterate the events and add them to the serializedEvents list. The
+        // ids are iterated in one pass, because size() and getIdByIndex() can
+        // be expensive on lazy containers.
+        List<EventTokens> tokenized = new ArrayList<EventTokens>();
+        for (Object id : source.getItemIds()) {
+            Item item = source.getItem(id);
+            if (filter != null && !filter.passesFilter(id, item)) {
+                continue;
+            }
+
+            // Event start
+            Date startDate = (Date) item
+                    .getItemProperty(eventStartPropertyId).getValue();
+            if (startDate == null) {
+                log.warn("Event start of item '{}' is null. "
+                        + "Skipping item.", id);
+                continue;
+            }
+
+            // Dot events show no content, so their preview is empty.
+            boolean dot = false;
+            if (lazyContent && typeFieldExists) {
+                dot = item.getItemProperty(eventTypePropertyId)
+                        .getValue() == EventType.DOT;
+            }
+
+            int handle = handles.getHandle(id);
+            long end = startDate.getTime();
+            String group = "";
+            String[] values = new String[serializedFields.size()];
+            String[] tokens = null;
+            values[0] = String.valueOf(startDate.getTime());
+
+            // Start date was already handled.
+            for (int p = 1; p < propertyIds.length; p++) {
+                Object property = item.getItemProperty(propertyIds[p])
+                        .getValue();
+                Class<?> type = types[p];
+
+                // Templated content is sent as the template id followed by
+                // the parameters. A lazily loaded content is expanded here
+                // instead, so it gets the same preview as plain content.
+                if (property instanceof TemplateContent) {
+                    if (lazyContent && p == 1) {
+                        values[p] = dot ? "" : previewContent(
+                                expandTemplateContent(contentTemplates,
+                                        (TemplateContent) property));
+                    } else {
+                        StringBuilder token = new StringBuilder();
+                        appendTemplateContent(token,
+                                (TemplateContent) property);
+                        if (tokens == null) {
+                            tokens = new String[values.length];
+                        }
+                        tokens[p] = token.toString();
+                    }
+                    continue;
+                }
+
+                String value;
+                if (type.isAssignableFrom(Date.class)) {
+                    Date date = (Date) property;
+                    value = "";
+                    if (date != null) {
+                        value = String.valueOf(date.getTime());
+                        if (p == endField) {
+                            end = date.getTime();
+                        }
+                    }
+                } else if (type.isAssignableFrom(Boolean.class)) {
+                    Boolean bool = (Boolean) property;
+                    value = bool == null ? Boolean.FALSE.toString()
+                            : bool.toString();
+                } else if (type.isAssignableFrom(EventType.class)) {
+                    EventType eventType = (EventType) property;
+                    value = eventType == null
+                            ? EventType.getDefault().value()
+                            : eventType.value();
+                } else {
+                    value = property == null ? "" : property.toString();
+                    if (lazyContent && p == 1) {
+                        value = dot ? "" : previewContent(value);
+                    }
+                    if (p == groupField) {
+                        group = value;
+                    }
+                }
+                values[p] = value;
+            }
+
+            // Icons and icon alignments
+            Resource icon = null;
+            if (iconFieldExists) {
+                icon = (Resource) item
+                        .getItemProperty(eventIconPropertyId).getValue();
+            }
+            Alignment alignment = null;
+            if (iconAlignmentFieldExists) {
+                alignment = (Alignment) item
+                        .getItemProperty(eventIconAlignmentPropertyId)
+                        .getValue();
+            }
+
+            tokenized.add(new EventTokens(handle, startDate.getTime(), end,
+                    group, values, tokens, icon, alignment));
+        }
+
+        if (serverStacking) {
+            assignLanes(tokenized, propertyIds.length);
+        }
+
+        // Values equal to the column or group default are left out.
+        String[] fieldNames = serializedFields.values().toArray(
+                new String[serializedFields.size()]);
+        String[] columnDefaults = new String[fieldNames.length];
+        Map<String, String[]> groupDefaults = new HashMap<String, String[]>();
+        computeFieldDefaults(fieldNames, tokenized, columnDefaults,
+                groupDefaults);
+        List<SerializedEvent> serialized = new ArrayList<SerializedEvent>(
+                tokenized.size());
+        String lastGroup = null;
+        String[] eventGroupDefaults = null;
+        for (EventTokens event : tokenized) {
+            if (!event.group.equals(lastGroup)) {
+                lastGroup = event.group;
+                eventGroupDefaults = groupDefaults.get(lastGroup);
+            }
+            serialized.add(event.serialize(columnDefaults,
+                    eventGroupDefaults));
+        }
+
+        return new EncodedEvents(version, serializedFields,
+                toFieldMap(fieldNames, columnDefaults),
+                toGroupMaps(fieldNames, groupDefaults), serialized);
+    }
+
+    /**
+     * Key the defaults by field name.
+     *
+     * @param fieldNames The serialized field names in order.
+     * @param defaults The defaults in the order of the fields.
+     * @return The defaults that are set, keyed by field name.
+     */
+    private static Map<String, String> toFieldMap(String[] fieldNames,
+            String[] defaults) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int p = 0; p < fieldNames.length; p++) {
+            if (defaults[p] != null) {
+                map.put(fieldNames[p], defaults[p]);
+            }
+        }
+        return map;
+    }
+
+    private static Map<String, Map<String, String>> toGroupMaps(
+            String[] fieldNames, Map<String, String[]> groupDefaults) {
+        Map<String, Map<String, String>> maps
+                = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, String[]> group : groupDefaults.entrySet()) {
+            maps.put(group.getKey(), toFieldMap(fieldNames,
+                    group.getValue()));
+        }
+        return maps;
+    }
+
+    /**
+     * Assign the events to stacking lanes so that the events in a lane don't
+     * overlap. Each group is swept in the order of event start, and an event
+     * takes the lowest lane that is free at its start.
+     *
+     * @param tokenized The events.
+     * @param index The index of the lane field.
+     */
+    private static void assignLanes(List<EventTokens> tokenized, int index) {
+        Map<String, List<EventTokens>> groups
+                = new HashMap<String, List<EventTokens>>();
+        for (EventTokens event : tokenized) {
+            List<EventTokens> group = groups.get(event.group);
+            if (group == null) {
+                group = new ArrayList<EventTokens>();
+                groups.put(event.group, group);
+            }
+            group.add(event);
+        }
+
+        for (List<EventTokens> group : groups.values()) {
+            Collections.sort(group, EventTokens.BY_START);
+
+            // Occupied lanes ordered by the end of their last event, and the
+            // free lanes ordered by index.
+            PriorityQueue<long[]> occupied = new PriorityQueue<long[]>(11,
+                    new Comparator<long[]>() {
+
+                        @Override
+                        public int compare(long[] o1, long[] o2) {
+                            return o1[0] < o2[0] ? -1
+                                    : (o1[0] > o2[0] ? 1 : 0);
+                        }
+
+                    });
+            PriorityQueue<Integer> free = new PriorityQueue<Integer>();
+            int lanes = 0;
+
+            for (EventTokens event : group) {
+                while (!occupied.isEmpty()
+                        && occupied.peek()[0] < event.start) {
+                    free.add((int) occupied.poll()[1]);
+                }
+                int lane = free.isEmpty() ? lanes++ : free.poll();
+                occupied.add(new long[]{event.end, lane});
+
+                event.values[index] = String.valueOf(lane);
+            }
+        }
+    }
+
+    /**
+     * Find the most common value of each defaultable field, overall and in
+     * each group. Only the group defaults differing from the column default
+     * are kept. The values of all the fields are counted in one pass over
+     * the events.
+     *
+     * @param fieldNames The serialized field names in order.
+     * @param tokenized The events.
+     * @param columnDefaults The column defaults to fill, in the order of the
+     * fields.
+     * @param groupDefaults The group defaults to fill, in the order of the
+     * fields.
+     */
+    private static void computeFieldDefaults(String[] fieldNames,
+            List<EventTokens> tokenized, String[] columnDefaults,
+            Map<String, String[]> groupDefaults) {
+        int[] fields = new int[fieldNames.length];
+        int count = 0;
+        for (int p = 1; p < fieldNames.length; p++) {
+            if (DEFAULTABLE_FIELDS.contains(fieldNames[p])) {
+                fields[count++] = p;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        fields = Arrays.copyOf(fields, count);
+
+        ValueCounts[] counts = ValueCounts.create(fieldNames.length);
+        Map<String, ValueCounts[]> groupCounts
+                = new HashMap<String, ValueCounts[]>();
+        String lastGroup = null;
+        ValueCounts[] inGroup = null;
+        for (EventTokens event : tokenized) {
+            // The events of a group tend to come together.
+            if (!event.group.equals(lastGroup)) {
+                lastGroup = event.group;
+                inGroup = groupCounts.get(lastGroup);
+                if (inGroup == null) {
+                    inGroup = ValueCounts.create(fieldNames.length);
+                    groupCounts.put(lastGroup, inGroup);
+                }
+            }
+            for (int p : fields) {
+                String value = event.values[p];
+                if (value != null) {
+                    counts[p].add(value);
+                    inGroup[p].add(value);
+                }
+            }
+        }
+
+        for (int p : fields) {
+            columnDefaults[p] = counts[p].mostCommon();
+        }
+        for (Map.Entry<String, ValueCounts[]> entry
+                : groupCounts.entrySet()) {
+            for (int p : fields) {
+                String groupDefault = entry.getValue()[p].mostCommon();
+                if (groupDefault == null
+                        || groupDefault.equals(columnDefaults[p])) {
+                    continue;
+                }
+                String[] defaults = groupDefaults.get(entry.getKey());
+                if (defaults == null) {
+                    defaults = new String[fieldNames.length];
+                    groupDefaults.put(entry.getKey(), defaults);
+                }
+                defaults[p] = groupDefault;
+            }
+        }
+    }
+
+    /**
+     * Counts the values of a field.
+     */
+    private static class ValueCounts {
+
+        private final Map<String, int[]> counts
+                = new HashMap<String, int[]>();
+
+        static ValueCounts[] create(int fields) {
+            ValueCounts[] counts = new ValueCounts[fields];
+            for (int p = 0; p < fields; p++) {
+                counts[p] = new ValueCounts();
+            }
+            return counts;
+        }
+
+        void add(String value) {
+            int[] count = counts.get(value);
+            if (count == null) {
+                counts.put(value, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+
+        /**
+         * The most common value, or null if none were counted.
+         */
+        String mostCommon() {
+            String result = null;
+            int max = 0;
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                if (entry.getValue()[0] > max) {
+                    max = entry.getValue()[0];
+                    result = entry.getKey();
+                }
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Make a preview of event content. The HTML tags are removed and the text
+     * is truncated to the preview length.
+     *
+     * @param content The content.
+     * @return The preview.
+     */
+    private String previewContent(String content) {
+        // Strip the tags, but only as far as the preview needs: the text
+        // goes past the preview length at the first non-space character
+        // after it.
+        StringBuilder sb = new StringBuilder(Math.min(content.length(),
+                contentPreviewLength + 1));
+        int lastClose = content.lastIndexOf('>');
+        boolean inTag = false;
+        for (int i = 0; i < content.length(); i++) {
+            char ch = content.charAt(i);
+            if (inTag) {
+                inTag = ch != '>';
+            } else if (ch == '<' && i < lastClose) {
+                inTag = true;
+            } else if (ch > ' ' || sb.length() > 0) {
+                sb.append(ch);
+                if (ch > ' ' && sb.length() > contentPreviewLength) {
+                    break;
+                }
+            }
+        }
+        String text = sb.toString().trim();
+        if (text.length() > contentPreviewLength) {
+            text = text.substring(0, contentPreviewLength) + "\u2026";
+        }
+        return text;
+    }
+
+    /**
+     * Append templated content as a JSON array of the template id and the
+     * parameters.
+     *
+     * @param srlzd The serialized event.
+     * @param content The content.
+     */
+    private static void appendTemplateContent(StringBuilder srlzd,
+            TemplateContent content) {
+        srlzd.append("[\"")
+                .append(JsonPaintTarget.escapeJSON(content.getTemplateId()))
+                .append("\"");
+        for (Object param : content.getParams()) {
+            srlzd.append(",\"")
+                    .append(JsonPaintTarget.escapeJSON(param == null ? ""
+                            : param.toString()))
+                    .append("\"");
+        }
+        srlzd.append("]");
+    }
+
+    /**
+     * Expand templated content on the server side.
+     *
+     * @param contentTemplates The content templates. Key = template id.
+     * @param content The content.
+     * @return The expanded content, or an empty string if the template isn't
+     * registered.
+     */
+    static String expandTemplateContent(Map<String, String> contentTemplates,
+            TemplateContent content) {
+        String template = contentTemplates.get(content.getTemplateId());
+        if (template == null) {
+            return "";
+        }
+        Object[] params = content.getParams();
+        String[] values = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            values[i] = params[i] == null ? "" : params[i].toString();
+        }
+        return new ContentTemplate(template).expand(values);
+    }
+
+}
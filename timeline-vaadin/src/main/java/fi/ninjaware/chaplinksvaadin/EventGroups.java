@@ -0,0 +1,384 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.gwt.server.JsonPaintTarget;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventType;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The group view of a timeline: the groups sent to the client when only the
+ * groups scrolled into view are sent, and the collapsed groups, whose events
+ * are replaced with summaries.
+ *
+ * @author miku
+ */
+class EventGroups implements Serializable {
+
+    /**
+     * The number of groups sent below the visible ones.
+     */
+    private static final int GROUP_BUFFER = 5;
+
+    private final Timeline timeline;
+
+    /**
+     * The encoded events the groups are of.
+     */
+    private EncodedEvents encoded;
+
+    /**
+     * All the event groups in the order they are shown, when using group
+     * virtualization.
+     */
+    private List<String> groupOrder = Collections.emptyList();
+
+    /**
+     * The index of the first group in view.
+     */
+    private int firstGroup = 0;
+
+    /**
+     * The number of groups in view, as reported by the client.
+     */
+    private int visibleGroups = 20;
+
+    /**
+     * The groups whose events the client has.
+     */
+    private final Set<String> sentGroups = new HashSet<String>();
+
+    /**
+     * The groups the client should remove, because they have been scrolled
+     * out of view, or their events are replaced.
+     */
+    private final List<String> removedGroups = new ArrayList<String>();
+
+    /**
+     * The collapsed groups. Their events are replaced with summaries.
+     */
+    private final Set<String> collapsedGroups = new HashSet<String>();
+
+    /**
+     * The summaries of the collapsed groups, computed when first needed.
+     * Key = group.
+     */
+    private final Map<String, List<SerializedEvent>> groupSummaries
+            = new HashMap<String, List<SerializedEvent>>();
+
+    /**
+     * The handle of the next summary event. Summaries have negative handles,
+     * so they never collide with the event handles, and they stay above the
+     * handles the client gives the events added on the client side.
+     */
+    private int nextSummaryHandle = -2;
+
+    EventGroups(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Use newly encoded events. The summaries are computed again.
+     *
+     * @param encoded The encoded events.
+     * @param virtualizing True, if only the groups in view are sent.
+     */
+    void reset(EncodedEvents encoded, boolean virtualizing) {
+        this.encoded = encoded;
+        groupSummaries.clear();
+        nextSummaryHandle = -2;
+        groupOrder = virtualizing ? encoded.groups
+                : Collections.<String>emptyList();
+    }
+
+    /**
+     * Start over with the groups in view, when all the events are sent
+     * again.
+     *
+     * @param virtualizing True, if only the groups in view are sent.
+     */
+    void resend(boolean virtualizing) {
+        removedGroups.clear();
+        if (virtualizing) {
+            sentGroups.clear();
+            sentGroups.addAll(groupsInRange());
+        }
+    }
+
+    boolean isCollapsed(String group) {
+        return collapsedGroups.contains(group);
+    }
+
+    /**
+     * Collapse or expand a group.
+     *
+     * @param group The group.
+     * @param collapsed True to collapse the group, false to expand it.
+     * @return True, if the group changed.
+     */
+    boolean setCollapsed(String group, boolean collapsed) {
+        return collapsed ? collapsedGroups.add(group)
+                : collapsedGroups.remove(group);
+    }
+
+    Set<String> getCollapsed() {
+        return collapsedGroups;
+    }
+
+    /**
+     * Check whether the client has the events of a group.
+     *
+     * @param group The group.
+     * @return True, if the group has been sent.
+     */
+    boolean isSent(String group) {
+        return sentGroups.contains(group);
+    }
+
+    /**
+     * Mark the events of a group for removal on the client side.
+     *
+     * @param groups The groups.
+     */
+    void removeOnClient(Collection<String> groups) {
+        removedGroups.addAll(groups);
+    }
+
+    /**
+     * Take the groups marked for removal on the client side.
+     *
+     * @return The groups.
+     */
+    List<String> takeRemoved() {
+        List<String> removed = new ArrayList<String>(removedGroups);
+        removedGroups.clear();
+        return removed;
+    }
+
+    /**
+     * Set the groups in view, as reported by the client.
+     *
+     * @param first The index of the first group in view, or null if
+     * unchanged.
+     * @param visible The number of groups in view, or null if unchanged.
+     */
+    void setRange(Integer first, Integer visible) {
+        if (first != null) {
+            firstGroup = first;
+        }
+        if (visible != null) {
+            visibleGroups = visible;
+        }
+    }
+
+    /**
+     * The groups in view and the buffer below them. No buffer is kept above,
+     * since the timeline shows the groups it has from the top.
+     *
+     * @return The groups in order.
+     */
+    List<String> groupsInRange() {
+        int from = Math.max(0, Math.min(firstGroup, groupOrder.size()));
+        int to = Math.min(groupOrder.size(),
+                from + visibleGroups + GROUP_BUFFER);
+        return groupOrder.subList(from, to);
+    }
+
+    /**
+     * Mark the groups scrolled out of view for removal.
+     *
+     * @return The groups scrolled out of view.
+     */
+    Set<String> dropOutOfRange() {
+        Set<String> wanted = new HashSet<String>(groupsInRange());
+        Set<String> removed = new HashSet<String>();
+        for (Iterator<String> it = sentGroups.iterator(); it.hasNext();) {
+            String group = it.next();
+            if (!wanted.contains(group)) {
+                removed.add(group);
+                it.remove();
+            }
+        }
+        removedGroups.addAll(removed);
+        return removed;
+    }
+
+    /**
+     * Mark the groups scrolled into view sent.
+     *
+     * @return The groups scrolled into view.
+     */
+    List<String> takeIntoRange() {
+        List<String> added = new ArrayList<String>();
+        for (String group : groupsInRange()) {
+            if (sentGroups.add(group)) {
+                added.add(group);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Get the events the client shows when not using windowed loading: the
+     * events of the sent groups, with the events of the collapsed groups
+     * replaced by their summaries.
+     *
+     * @param events All the events in the order they are sent.
+     * @param virtualizing True, if only the groups in view are sent.
+     * @return The events in the order they are sent.
+     */
+    List<SerializedEvent> getShownEvents(List<SerializedEvent> events,
+            boolean virtualizing) {
+        List<SerializedEvent> shown = new ArrayList<SerializedEvent>();
+        Set<String> summarized = new HashSet<String>();
+        for (SerializedEvent event : events) {
+            if (virtualizing && !event.group.isEmpty()
+                    && !sentGroups.contains(event.group)) {
+                continue;
+            }
+            if (collapsedGroups.contains(event.group)) {
+                if (summarized.add(event.group)) {
+                    shown.addAll(getSummaries(event.group));
+                }
+                continue;
+            }
+            shown.add(event);
+        }
+        return shown;
+    }
+
+    /**
+     * Get the events to send for a group: its summaries, if collapsed, and
+     * its events otherwise.
+     *
+     * @param group The group.
+     * @return The events sorted by start.
+     */
+    List<SerializedEvent> getGroupEvents(String group) {
+        if (collapsedGroups.contains(group)) {
+            return getSummaries(group);
+        }
+        return encoded.getGroupIndex(group).getEvents();
+    }
+
+    /**
+     * Get the summary events of a group. Overlapping events are merged into
+     * one summary showing their count. If there are still more summaries
+     * than allowed, runs of consecutive summaries are merged.
+     *
+     * @param group The group.
+     * @return The summary events sorted by start.
+     */
+    List<SerializedEvent> getSummaries(String group) {
+        List<SerializedEvent> summaries = groupSummaries.get(group);
+        if (summaries != null) {
+            return summaries;
+        }
+
+        // Merge the overlapping events: {start, end, count}.
+        List<long[]> ranges = new ArrayList<long[]>();
+        long[] current = null;
+        for (SerializedEvent event : encoded.getGroupIndex(group).getEvents()) {
+            if (current != null && event.start <= current[1]) {
+                current[1] = Math.max(current[1], event.end);
+                current[2]++;
+            } else {
+                current = new long[]{event.start, event.end, 1};
+                ranges.add(current);
+            }
+        }
+
+        int summaryRanges = timeline.getSummaryRanges();
+        int perSummary = Math.max(1,
+                (ranges.size() + summaryRanges - 1) / summaryRanges);
+        summaries = new ArrayList<SerializedEvent>();
+        for (int i = 0; i < ranges.size(); i += perSummary) {
+            long[] first = ranges.get(i);
+            long end = first[1];
+            long count = 0;
+            for (int j = i; j < Math.min(ranges.size(), i + perSummary);
+                    j++) {
+                end = Math.max(end, ranges.get(j)[1]);
+                count += ranges.get(j)[2];
+            }
+            summaries.add(serializeSummary(group, first[0], end, count));
+        }
+
+        groupSummaries.put(group, summaries);
+        return summaries;
+    }
+
+    /**
+     * Serialize a summary event. The summary is a range showing the number
+     * of events, with the class name "timeline-summary" if the class name
+     * field is in use.
+     *
+     * @param group The group.
+     * @param start Summary start in milliseconds.
+     * @param end Summary end in milliseconds.
+     * @param count The number of summarized events.
+     * @return The summary event.
+     */
+    private SerializedEvent serializeSummary(String group, long start,
+            long end, long count) {
+        int handle = nextSummaryHandle--;
+        StringBuilder srlzd = new StringBuilder();
+        srlzd.append("[").append(handle);
+        for (String field : encoded.fields.values()) {
+            String value = null;
+            if (field.equals(EventFields.START.toString())) {
+                value = String.valueOf(start);
+            } else if (field.equals(EventFields.END.toString())) {
+                value = end > start ? String.valueOf(end) : "";
+            } else if (field.equals(EventFields.CONTENT.toString())) {
+                value = String.valueOf(count);
+            } else if (field.equals(EventFields.GROUP.toString())) {
+                value = group;
+            } else if (field.equals(EventFields.CLASSNAME.toString())) {
+                value = "timeline-summary";
+            } else if (field.equals(EventFields.EDITABLE.toString())) {
+                value = Boolean.FALSE.toString();
+            } else if (field.equals(EventFields.TYPE.toString())) {
+                value = end > start ? EventType.RANGE.value()
+                        : EventType.BOX.value();
+            } else if (field.equals(LANE.toString())) {
+                value = "0";
+            }
+            srlzd.append(",").append(value == null ? "null"
+                    : "\"" + JsonPaintTarget.escapeJSON(value) + "\"");
+        }
+        srlzd.append("]");
+
+        return new SerializedEvent(handle, start, end, group,
+                srlzd.toString(), null, null);
+    }
+
+    /**
+     * Paint the group range and the groups to remove on the client side.
+     *
+     * @param target The paint target.
+     * @param virtualizing True, if only the groups in view are sent.
+     * @throws PaintException if the paint operation fails.
+     */
+    void paint(PaintTarget target, boolean virtualizing)
+            throws PaintException {
+        target.addAttribute(GROUP_VIRTUALIZATION.v, virtualizing);
+        target.addAttribute(GROUP_TOTAL.v, groupOrder.size());
+        target.addAttribute(FIRST_GROUP.v, firstGroup);
+        target.addAttribute(REMOVED_GROUPS.v,
+                removedGroups.toArray(new String[removedGroups.size()]));
+        removedGroups.clear();
+    }
+
+}
@@ -0,0 +1,77 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of dense integer handles for the event container item ids. The
+ * handles are sent to the client instead of the stringified item ids and used
+ * in all references between the client and the server. The table is shared
+ * by the timelines showing shared event data, so it is synchronized.
+ *
+ * @author miku
+ */
+class EventHandles implements Serializable {
+
+    /**
+     * Key = item id, Value = handle.
+     */
+    private final Map<Object, Integer> handles = new HashMap<Object, Integer>();
+
+    /**
+     * The item ids indexed by their handles.
+     */
+    private final List<Object> itemIds = new ArrayList<Object>();
+
+    /**
+     * Get the handle of an item. A new handle is assigned if the item doesn't
+     * have one yet.
+     *
+     * @param itemId The item id in the event container.
+     * @return The handle of the item.
+     */
+    synchronized int getHandle(Object itemId) {
+        Integer handle = handles.get(itemId);
+        if (handle == null) {
+            handle = itemIds.size();
+            handles.put(itemId, handle);
+            itemIds.add(itemId);
+        }
+        return handle;
+    }
+
+    /**
+     * Get the handle of an item without assigning one.
+     *
+     * @param itemId The item id in the event container.
+     * @return The handle of the item or null, if it doesn't have one.
+     */
+    synchronized Integer findHandle(Object itemId) {
+        return handles.get(itemId);
+    }
+
+    /**
+     * Get the item id of a handle.
+     *
+     * @param handle The handle.
+     * @return The item id or null, if the handle is unknown.
+     */
+    synchronized Object getItemId(int handle) {
+        if (handle < 0 || handle >= itemIds.size()) {
+            return null;
+        }
+        return itemIds.get(handle);
+    }
+
+    /**
+     * Forget all the handles. Called when the event container is replaced.
+     */
+    synchronized void clear() {
+        handles.clear();
+        itemIds.clear();
+    }
+
+}
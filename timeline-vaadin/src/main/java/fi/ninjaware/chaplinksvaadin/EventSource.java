@@ -0,0 +1,73 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import java.io.Serializable;
+
+/**
+ * One of the event sources merged on Timeline with
+ * {@link Timeline#setEventDataSources(EventSource...)}. The events of the
+ * source container must be sorted by their start, and the container must
+ * have the same event properties as the other sources.
+ *
+ * @author miku
+ */
+public class EventSource implements Serializable {
+
+    private final Container.Indexed container;
+
+    /**
+     * The group of all the events of the source, or null to use the group
+     * property of the events.
+     */
+    private String group;
+
+    /**
+     * The CSS class name of all the events of the source, or null to use the
+     * class name property of the events.
+     */
+    private String className;
+
+    public EventSource(Container.Indexed container) {
+        this.container = container;
+    }
+
+    public EventSource(Container.Indexed container, String group,
+            String className) {
+        this.container = container;
+        this.group = group;
+        this.className = className;
+    }
+
+    public Container.Indexed getContainer() {
+        return container;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Show all the events of the source in a group.
+     *
+     * @param group The group, or null to use the group property of the
+     * events.
+     */
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Give all the events of the source a CSS class name.
+     *
+     * @param className The class name, or null to use the class name
+     * property of the events.
+     */
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+}
@@ -0,0 +1,724 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+import com.vaadin.terminal.Resource;
+import com.vaadin.ui.Alignment;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventType;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A versioned event container for events written by background threads.
+ * Every write publishes a new immutable {@link Snapshot}, sharing the
+ * unchanged parts with the previous one: the events are kept in a tree of
+ * fixed size nodes, and a write copies only the nodes on the path to the
+ * events it changes. Readers take the
+ * latest snapshot without locking, so serializing the events on a paint never
+ * blocks the writers, and never sees a half-done write. The writers are
+ * serialized among themselves.
+ * <p>
+ * The events are written with the methods of this class, not through the
+ * container interface. The properties are the {@link EventFields}, so use the
+ * default event property ids of Timeline. The item ids are integers that stay
+ * the same for the lifetime of the store. The item set change listeners are
+ * notified in the writing thread, so Timeline only marks its events changed
+ * unless the writer holds the application lock. See
+ * {@link Timeline#refreshEventData()}.
+ * <p>
+ * For high rate ingestion from many threads, use
+ * {@link #append(TimelineEvent)}. The appended events go to buffers striped
+ * by the event group, each with its own lock, so producers writing different
+ * groups rarely contend. The buffers are merged into a new snapshot by
+ * {@link #flush()}, which Timeline calls before reading the events. The
+ * listeners are notified only of the first event appended after a flush, so
+ * a burst of appends causes one repaint.
+ *
+ * @author miku
+ */
+public class EventStore extends ReadOnlyIndexedContainer implements
+        Container.ItemSetChangeNotifier {
+
+    /**
+     * The number of bits of the slot each level of the tree indexes.
+     */
+    private static final int BITS = 6;
+
+    /**
+     * The number of children of a tree node, or events in a leaf.
+     */
+    private static final int WIDTH = 1 << BITS;
+
+    private static final int MASK = WIDTH - 1;
+
+    private static final List<EventFields> PROPERTY_IDS
+            = Collections.unmodifiableList(Arrays.asList(EventFields.values()));
+
+    /**
+     * The latest snapshot.
+     */
+    private volatile Snapshot current = new Snapshot(new Object[WIDTH], 0, 0,
+            0, 0);
+
+    private final Object writeLock = new Object();
+
+    private final List<Container.ItemSetChangeListener> listeners
+            = new CopyOnWriteArrayList<Container.ItemSetChangeListener>();
+
+    /**
+     * The append buffers. The stripe of an event is chosen by its group.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * True, if events have been appended since the last flush and the
+     * listeners have been notified.
+     */
+    private final AtomicBoolean appended = new AtomicBoolean();
+
+    /**
+     * Create a store with 16 append buffers.
+     */
+    public EventStore() {
+        this(16);
+    }
+
+    /**
+     * Create a store.
+     *
+     * @param stripes The number of append buffers. Rounded up to a power of
+     * two.
+     */
+    public EventStore(int stripes) {
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Get the latest version of the events. The snapshot never changes.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Add an event.
+     *
+     * @param event The event.
+     * @return The item id of the event.
+     */
+    public Object add(TimelineEvent event) {
+        return addAll(Collections.singletonList(event)).get(0);
+    }
+
+    /**
+     * Add events as one version.
+     *
+     * @param events The events.
+     * @return The item ids of the events in order.
+     */
+    public List<Object> addAll(Collection<TimelineEvent> events) {
+        List<Object> itemIds = new ArrayList<Object>(events.size());
+        synchronized (writeLock) {
+            Builder builder = new Builder(current);
+            for (TimelineEvent event : events) {
+                itemIds.add(builder.add(new Entry(event)));
+            }
+            current = builder.publish();
+        }
+        fireItemSetChange();
+        return itemIds;
+    }
+
+    /**
+     * Replace an event.
+     *
+     * @param itemId The item id of the event.
+     * @param event The new event.
+     * @throws IllegalArgumentException if there is no such event.
+     */
+    public void update(Object itemId, TimelineEvent event) {
+        synchronized (writeLock) {
+            Builder builder = new Builder(current);
+            builder.set(slotOf(itemId), new Entry(event));
+            current = builder.publish();
+        }
+        fireItemSetChange();
+    }
+
+    /**
+     * Remove an event.
+     *
+     * @param itemId The item id of the event.
+     * @throws IllegalArgumentException if there is no such event.
+     */
+    public void remove(Object itemId) {
+        synchronized (writeLock) {
+            Builder builder = new Builder(current);
+            builder.set(slotOf(itemId), null);
+            current = builder.publish();
+        }
+        fireItemSetChange();
+    }
+
+    /**
+     * Append an event to be added on the next flush. Takes only the lock of
+     * the stripe of the event group. The event is copied on the flush, so
+     * it must not be changed after appending.
+     *
+     * @param event The event.
+     */
+    public void append(TimelineEvent event) {
+        String group = event.getGroup();
+        int hash = group == null ? 0 : group.hashCode();
+        hash ^= hash >>> 16;
+        Stripe stripe = stripes[hash & (stripes.length - 1)];
+        synchronized (stripe) {
+            stripe.pending.add(event);
+        }
+        // Read first, so the producers don't all write the flag.
+        if (!appended.get() && appended.compareAndSet(false, true)) {
+            fireItemSetChange();
+        }
+    }
+
+    /**
+     * Add the appended events as one new version. The listeners aren't
+     * notified, since they were when the first of the events was appended.
+     *
+     * @return The latest snapshot, including the appended events.
+     */
+    public Snapshot flush() {
+        if (!appended.getAndSet(false)) {
+            return current;
+        }
+
+        // Swap the buffers first, so the producers are blocked only for the
+        // swap, not for building the snapshot.
+        List<List<TimelineEvent>> drained
+                = new ArrayList<List<TimelineEvent>>(stripes.length);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (!stripe.pending.isEmpty()) {
+                    drained.add(stripe.pending);
+                    stripe.pending = new ArrayList<TimelineEvent>();
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            Builder builder = new Builder(current);
+            for (List<TimelineEvent> events : drained) {
+                for (TimelineEvent event : events) {
+                    builder.add(new Entry(event));
+                }
+            }
+            current = builder.publish();
+            return current;
+        }
+    }
+
+    private int slotOf(Object itemId) {
+        if (!current.containsId(itemId)) {
+            throw new IllegalArgumentException("No such event: " + itemId);
+        }
+        return (Integer) itemId;
+    }
+
+    // <editor-fold desc="Container">
+    @Override
+    public Item getItem(Object itemId) {
+        return current.getItem(itemId);
+    }
+
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return PROPERTY_IDS;
+    }
+
+    @Override
+    public Collection<?> getItemIds() {
+        return current.getItemIds();
+    }
+
+    @Override
+    public Class<?> getType(Object propertyId) {
+        return current.getType(propertyId);
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public int indexOfId(Object itemId) {
+        return current.indexOfId(itemId);
+    }
+
+    @Override
+    public Object getIdByIndex(int index) {
+        return current.getIdByIndex(index);
+    }
+
+    // </editor-fold>
+    // <editor-fold desc="Listeners">
+    @Override
+    public void addListener(Container.ItemSetChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Container.ItemSetChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireItemSetChange() {
+        final Snapshot snapshot = current;
+        Container.ItemSetChangeEvent event
+                = new Container.ItemSetChangeEvent() {
+
+                    @Override
+                    public Container getContainer() {
+                        return snapshot;
+                    }
+
+                };
+        for (Container.ItemSetChangeListener listener : listeners) {
+            listener.containerItemSetChange(event);
+        }
+    }
+
+    // </editor-fold>
+    /**
+     * An immutable version of the events.
+     */
+    public static final class Snapshot extends ReadOnlyIndexedContainer {
+
+        /**
+         * The root of the tree of events. The slot of an event is its item
+         * id, and each level of the tree indexes <code>BITS</code> bits of
+         * it. The leaves hold the events; removed events leave a null slot.
+         */
+        private final Object[] root;
+
+        /**
+         * The shift of the slot bits the root indexes. Zero, if the root is
+         * a leaf.
+         */
+        private final int shift;
+
+        /**
+         * The number of slots in use.
+         */
+        private final int slots;
+
+        /**
+         * The number of events.
+         */
+        private final int size;
+
+        private final long version;
+
+        private Snapshot(Object[] root, int shift, int slots, int size,
+                long version) {
+            this.root = root;
+            this.shift = shift;
+            this.slots = slots;
+            this.size = size;
+            this.version = version;
+        }
+
+        /**
+         * The version of the events. Increased by every write.
+         *
+         * @return The version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        private Entry entry(int slot) {
+            Object[] leaf = leaf(slot);
+            return leaf == null ? null : (Entry) leaf[slot & MASK];
+        }
+
+        /**
+         * Get the leaf holding a slot.
+         *
+         * @return The leaf, or null if none of its slots are in use.
+         */
+        private Object[] leaf(int slot) {
+            Object[] node = root;
+            for (int level = shift; level > 0 && node != null;
+                    level -= BITS) {
+                node = (Object[]) node[(slot >>> level) & MASK];
+            }
+            return node;
+        }
+
+        @Override
+        public Item getItem(Object itemId) {
+            if (!(itemId instanceof Integer)) {
+                return null;
+            }
+            int slot = (Integer) itemId;
+            if (slot < 0 || slot >= slots) {
+                return null;
+            }
+            Entry entry = entry(slot);
+            return entry == null ? null : new EntryItem(entry);
+        }
+
+        @Override
+        public Collection<?> getContainerPropertyIds() {
+            return PROPERTY_IDS;
+        }
+
+        @Override
+        public Collection<?> getItemIds() {
+            return new AbstractCollection<Integer>() {
+
+                @Override
+                public Iterator<Integer> iterator() {
+                    return new SlotIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+            };
+        }
+
+        @Override
+        public Class<?> getType(Object propertyId) {
+            if (!(propertyId instanceof EventFields)) {
+                return null;
+            }
+            switch ((EventFields) propertyId) {
+                case START:
+                case END:
+                    return Date.class;
+                case EDITABLE:
+                    return Boolean.class;
+                case TYPE:
+                    return EventType.class;
+                case ICON:
+                    return Resource.class;
+                case ICON_ALIGNMENT:
+                    return Alignment.class;
+                default:
+                    return String.class;
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Get the index of an event. Scans the events.
+         */
+        @Override
+        public int indexOfId(Object itemId) {
+            if (!containsId(itemId)) {
+                return -1;
+            }
+            int index = 0;
+            for (int slot = 0; slot < (Integer) itemId; slot++) {
+                if (entry(slot) != null) {
+                    index++;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Get the event at an index. Scans the events.
+         */
+        @Override
+        public Object getIdByIndex(int index) {
+            int remaining = index;
+            for (int slot = 0; slot < slots; slot++) {
+                if (entry(slot) != null && remaining-- == 0) {
+                    return slot;
+                }
+            }
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        /**
+         * Iterates the slots in use.
+         */
+        private class SlotIterator implements Iterator<Integer> {
+
+            /**
+             * The leaf of the slot last looked at, so the tree is walked
+             * once per leaf.
+             */
+            private Object[] leaf;
+
+            private int next = advance(0);
+
+            private int advance(int slot) {
+                while (slot < slots) {
+                    if (leaf == null || (slot & MASK) == 0) {
+                        leaf = leaf(slot);
+                    }
+                    if (leaf != null && leaf[slot & MASK] != null) {
+                        break;
+                    }
+                    slot++;
+                }
+                return slot;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < slots;
+            }
+
+            @Override
+            public Integer next() {
+                if (next >= slots) {
+                    throw new NoSuchElementException();
+                }
+                int slot = next;
+                next = advance(slot + 1);
+                return slot;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        }
+
+    }
+
+    /**
+     * An append buffer.
+     */
+    private static class Stripe implements Serializable {
+
+        List<TimelineEvent> pending = new ArrayList<TimelineEvent>();
+
+    }
+
+    /**
+     * Creates a new snapshot from the previous one. The nodes on the path to
+     * a written slot are copied when first written, and the rest of the tree
+     * is shared, so a write copies a node per level instead of all the
+     * events.
+     */
+    private static class Builder {
+
+        private final Snapshot base;
+
+        private Object[] root;
+
+        private int shift;
+
+        /**
+         * The nodes created by this builder, so they can be written.
+         */
+        private final Set<Object[]> owned = Collections.newSetFromMap(
+                new IdentityHashMap<Object[], Boolean>());
+
+        private int slots;
+
+        private int size;
+
+        Builder(Snapshot base) {
+            this.base = base;
+            root = base.root;
+            shift = base.shift;
+            slots = base.slots;
+            size = base.size;
+        }
+
+        int add(Entry entry) {
+            int slot = slots;
+            if ((long) slot >>> shift >= WIDTH) {
+                // The tree is full; the old root becomes the first child of
+                // a new one.
+                Object[] grown = newNode();
+                grown[0] = root;
+                root = grown;
+                shift += BITS;
+            }
+            slots++;
+            set(slot, entry);
+            return slot;
+        }
+
+        void set(int slot, Entry entry) {
+            root = writable(root);
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                int index = (slot >>> level) & MASK;
+                Object[] child = (Object[]) node[index];
+                child = child == null ? newNode() : writable(child);
+                node[index] = child;
+                node = child;
+            }
+            Object previous = node[slot & MASK];
+            if (previous == null && entry != null) {
+                size++;
+            } else if (previous != null && entry == null) {
+                size--;
+            }
+            node[slot & MASK] = entry;
+        }
+
+        private Object[] writable(Object[] node) {
+            if (owned.contains(node)) {
+                return node;
+            }
+            Object[] copy = node.clone();
+            owned.add(copy);
+            return copy;
+        }
+
+        private Object[] newNode() {
+            Object[] node = new Object[WIDTH];
+            owned.add(node);
+            return node;
+        }
+
+        Snapshot publish() {
+            return new Snapshot(root, shift, slots, size, base.version + 1);
+        }
+
+    }
+
+    /**
+     * An immutable event.
+     */
+    private static final class Entry implements Serializable {
+
+        final long start;
+
+        final Long end;
+
+        final String content;
+
+        final String group;
+
+        final String className;
+
+        final boolean editable;
+
+        final EventType type;
+
+        final Resource icon;
+
+        final Alignment iconAlignment;
+
+        Entry(TimelineEvent event) {
+            start = event.getStart().getTime();
+            end = event.getEnd() == null ? null : event.getEnd().getTime();
+            content = event.getContent();
+            group = event.getGroup();
+            className = event.getClassName();
+            editable = event.isEditable();
+            type = event.getType();
+            icon = event.getIcon();
+            iconAlignment = event.getIconAlignment();
+        }
+
+        Object getValue(EventFields field) {
+            switch (field) {
+                case START:
+                    return new Date(start);
+                case END:
+                    return end == null ? null : new Date(end);
+                case CONTENT:
+                    return content;
+                case GROUP:
+                    return group;
+                case CLASSNAME:
+                    return className;
+                case EDITABLE:
+                    return editable;
+                case TYPE:
+                    return type;
+                case ICON:
+                    return icon;
+                default:
+                    return iconAlignment;
+            }
+        }
+
+    }
+
+    /**
+     * A read-only item of an event.
+     */
+    private static class EntryItem implements Item {
+
+        private final Entry entry;
+
+        EntryItem(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Property getItemProperty(Object id) {
+            if (!(id instanceof EventFields)) {
+                return null;
+            }
+            Object value = entry.getValue((EventFields) id);
+            Class<Object> type = (Class<Object>) (value == null
+                    ? Object.class : value.getClass());
+            return new ObjectProperty<Object>(value, type, true);
+        }
+
+        @Override
+        public Collection<?> getItemPropertyIds() {
+            return PROPERTY_IDS;
+        }
+
+        @Override
+        public boolean addItemProperty(Object id, Property property) {
+            throw new UnsupportedOperationException(
+                    "EventStore items are read-only.");
+        }
+
+        @Override
+        public boolean removeItemProperty(Object id) {
+            throw new UnsupportedOperationException(
+                    "EventStore items are read-only.");
+        }
+
+    }
+
+}
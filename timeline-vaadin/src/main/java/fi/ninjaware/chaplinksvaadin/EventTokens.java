@@ -0,0 +1,152 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.terminal.Resource;
+import com.vaadin.terminal.gwt.server.JsonPaintTarget;
+import com.vaadin.ui.Alignment;
+import java.util.Comparator;
+
+/**
+ * An event read from the container, with its field values not yet encoded.
+ * The fields having the default value are left out when the event is
+ * serialized.
+ *
+ * @author miku
+ */
+class EventTokens {
+
+    /**
+     * Orders the events by their start.
+     */
+    static final Comparator<EventTokens> BY_START
+            = new Comparator<EventTokens>() {
+
+                @Override
+                public int compare(EventTokens o1, EventTokens o2) {
+                    return o1.start < o2.start ? -1
+                            : (o1.start > o2.start ? 1 : 0);
+                }
+
+            };
+
+    final int handle;
+
+    final long start;
+
+    final long end;
+
+    /**
+     * The event group, or an empty string.
+     */
+    final String group;
+
+    /**
+     * The field values, in the order of the serialized fields, sent as JSON
+     * strings. Null for the fields encoded in <code>tokens</code>.
+     */
+    final String[] values;
+
+    /**
+     * The fields already encoded as JSON, like templated contents, which
+     * can't have a default. Null, if the event has no such fields.
+     */
+    final String[] tokens;
+
+    final Resource icon;
+
+    final Alignment iconAlignment;
+
+    EventTokens(int handle, long start, long end, String group,
+            String[] values, String[] tokens, Resource icon,
+            Alignment iconAlignment) {
+        this.handle = handle;
+        this.start = start;
+        this.end = end;
+        this.group = group;
+        this.values = values;
+        this.tokens = tokens;
+        this.icon = icon;
+        this.iconAlignment = iconAlignment;
+    }
+
+    /**
+     * Serialize the event. Fields with the default value are sent as null,
+     * and trailing nulls are left out.
+     *
+     * @param columnDefaults The column defaults in the order of the
+     * serialized fields. Null for the fields without a default.
+     * @param groupDefaults The defaults of the event group in the order of
+     * the serialized fields, or null.
+     * @return The serialized event.
+     */
+    SerializedEvent serialize(String[] columnDefaults,
+            String[] groupDefaults) {
+        int last = 0;
+        int length = 16;
+        for (int p = 0; p < values.length; p++) {
+            if (!isDefault(p, columnDefaults, groupDefaults)) {
+                last = p;
+                length += values[p] != null ? values[p].length() + 3
+                        : tokens[p].length() + 1;
+            }
+        }
+
+        StringBuilder srlzd = new StringBuilder(length);
+        srlzd.append('[').append(handle);
+        for (int p = 0; p <= last; p++) {
+            srlzd.append(',');
+            if (values[p] == null) {
+                srlzd.append(tokens[p]);
+            } else if (isDefault(p, columnDefaults, groupDefaults)) {
+                srlzd.append("null");
+            } else {
+                appendString(srlzd, values[p]);
+            }
+        }
+        srlzd.append(']');
+
+        return new SerializedEvent(handle, start, end, group,
+                srlzd.toString(), icon, iconAlignment);
+    }
+
+    private boolean isDefault(int p, String[] columnDefaults,
+            String[] groupDefaults) {
+        if (values[p] == null) {
+            return false;
+        }
+        String defaultValue = groupDefaults != null ? groupDefaults[p]
+                : null;
+        if (defaultValue == null) {
+            defaultValue = columnDefaults[p];
+        }
+        return values[p].equals(defaultValue);
+    }
+
+    /**
+     * Append a string as a JSON string. Escapes the same characters as
+     * {@link JsonPaintTarget#escapeJSON(String)}, but without copying the
+     * strings that need no escaping.
+     *
+     * @param sb The builder.
+     * @param s The string.
+     */
+    static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        int length = s.length();
+        int i = 0;
+        while (i < length && !needsEscape(s.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            sb.append(s);
+        } else {
+            sb.append(s, 0, i).append(JsonPaintTarget.escapeJSON(
+                    s.substring(i)));
+        }
+        sb.append('"');
+    }
+
+    private static boolean needsEscape(char ch) {
+        return ch < ' ' || ch == '"' || ch == '\\' || ch == '/';
+    }
+
+}
@@ -0,0 +1,463 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A read-only container merging several event sources sorted by their start.
+ * Iterating the item ids merges the sources lazily with a heap of the next
+ * event of each source, so the events are never copied into one container.
+ * The indexed access materializes the merged order once, until a source
+ * changes. The group and class name of the events can be overridden per
+ * source.
+ *
+ * @author miku
+ */
+class MergedEventContainer extends ReadOnlyIndexedContainer implements
+        Container.ItemSetChangeNotifier, Property.ValueChangeNotifier {
+
+    /**
+     * The id of a merged item: the source index and the item id in the
+     * source.
+     */
+    static class MergedItemId implements Serializable {
+
+        final int source;
+
+        final Object itemId;
+
+        MergedItemId(int source, Object itemId) {
+            this.source = source;
+            this.itemId = itemId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MergedItemId)) {
+                return false;
+            }
+            MergedItemId other = (MergedItemId) obj;
+            return source == other.source && itemId.equals(other.itemId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source + itemId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return source + ":" + itemId;
+        }
+
+    }
+
+    private final List<EventSource> sources;
+
+    private final Object startPropertyId;
+
+    private final Object groupPropertyId;
+
+    private final Object classNamePropertyId;
+
+    private final Set<Object> propertyIds = new LinkedHashSet<Object>();
+
+    /**
+     * The merged order, or null until needed after a change.
+     */
+    private List<MergedItemId> order;
+
+    /**
+     * Key = item id, Value = index in <code>order</code>.
+     */
+    private Map<MergedItemId, Integer> indexes;
+
+    private final List<Container.ItemSetChangeListener> itemSetListeners
+            = new ArrayList<Container.ItemSetChangeListener>();
+
+    private final List<Property.ValueChangeListener> valueListeners
+            = new ArrayList<Property.ValueChangeListener>();
+
+    private final SourceListener sourceListener = new SourceListener();
+
+    MergedEventContainer(List<EventSource> sources, Object startPropertyId,
+            Object groupPropertyId, Object classNamePropertyId) {
+        this.sources = new ArrayList<EventSource>(sources);
+        this.startPropertyId = startPropertyId;
+        this.groupPropertyId = groupPropertyId;
+        this.classNamePropertyId = classNamePropertyId;
+
+        for (EventSource source : this.sources) {
+            propertyIds.addAll(
+                    source.getContainer().getContainerPropertyIds());
+            if (source.getGroup() != null) {
+                propertyIds.add(groupPropertyId);
+            }
+            if (source.getClassName() != null) {
+                propertyIds.add(classNamePropertyId);
+            }
+        }
+    }
+
+    // <editor-fold desc="Merging">
+    /**
+     * The next event of a source during the merge.
+     */
+    private static class Head {
+
+        final int source;
+
+        final Iterator<?> rest;
+
+        Object itemId;
+
+        long start;
+
+        Head(int source, Iterator<?> rest) {
+            this.source = source;
+            this.rest = rest;
+        }
+
+    }
+
+    /**
+     * Orders the heads by the event start, and equal starts by the source.
+     */
+    private static final Comparator<Head> BY_START = new Comparator<Head>() {
+
+        @Override
+        public int compare(Head o1, Head o2) {
+            if (o1.start != o2.start) {
+                return o1.start < o2.start ? -1 : 1;
+            }
+            return o1.source - o2.source;
+        }
+
+    };
+
+    /**
+     * Iterates the events of all the sources in the order of their start.
+     */
+    private class MergeIterator implements Iterator<Object> {
+
+        private final PriorityQueue<Head> heads;
+
+        MergeIterator() {
+            heads = new PriorityQueue<Head>(Math.max(1, sources.size()),
+                    BY_START);
+            for (int s = 0; s < sources.size(); s++) {
+                Head head = new Head(s,
+                        sources.get(s).getContainer().getItemIds().iterator());
+                if (advance(head)) {
+                    heads.add(head);
+                }
+            }
+        }
+
+        private boolean advance(Head head) {
+            if (!head.rest.hasNext()) {
+                return false;
+            }
+            head.itemId = head.rest.next();
+            Property start = sources.get(head.source).getContainer()
+                    .getContainerProperty(head.itemId, startPropertyId);
+            Date date = start == null ? null : (Date) start.getValue();
+            head.start = date == null ? Long.MIN_VALUE : date.getTime();
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Object next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            MergedItemId id = new MergedItemId(head.source, head.itemId);
+            if (advance(head)) {
+                heads.add(head);
+            }
+            return id;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private List<MergedItemId> order() {
+        if (order == null) {
+            order = new ArrayList<MergedItemId>(size());
+            indexes = new HashMap<MergedItemId, Integer>();
+            Iterator<Object> it = new MergeIterator();
+            while (it.hasNext()) {
+                MergedItemId id = (MergedItemId) it.next();
+                indexes.put(id, order.size());
+                order.add(id);
+            }
+        }
+        return order;
+    }
+
+    // </editor-fold>
+    // <editor-fold desc="Container">
+    @Override
+    public Item getItem(Object itemId) {
+        if (!(itemId instanceof MergedItemId)) {
+            return null;
+        }
+        MergedItemId id = (MergedItemId) itemId;
+        if (id.source < 0 || id.source >= sources.size()) {
+            return null;
+        }
+        EventSource source = sources.get(id.source);
+        Item item = source.getContainer().getItem(id.itemId);
+        return item == null ? null : new MergedItem(source, item);
+    }
+
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return Collections.unmodifiableSet(propertyIds);
+    }
+
+    /**
+     * Get the item ids in the order of the event start. The sources are
+     * merged while iterating.
+     */
+    @Override
+    public Collection<?> getItemIds() {
+        return new AbstractCollection<Object>() {
+
+            @Override
+            public Iterator<Object> iterator() {
+                return new MergeIterator();
+            }
+
+            @Override
+            public int size() {
+                return MergedEventContainer.this.size();
+            }
+
+        };
+    }
+
+    @Override
+    public Class<?> getType(Object propertyId) {
+        for (EventSource source : sources) {
+            if ((propertyId.equals(groupPropertyId)
+                    && source.getGroup() != null)
+                    || (propertyId.equals(classNamePropertyId)
+                    && source.getClassName() != null)) {
+                return String.class;
+            }
+            Container container = source.getContainer();
+            if (container.getContainerPropertyIds().contains(propertyId)) {
+                return container.getType(propertyId);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (EventSource source : sources) {
+            size += source.getContainer().size();
+        }
+        return size;
+    }
+
+    @Override
+    public int indexOfId(Object itemId) {
+        order();
+        Integer index = indexes.get(itemId);
+        return index == null ? -1 : index;
+    }
+
+    @Override
+    public Object getIdByIndex(int index) {
+        return order().get(index);
+    }
+
+    // </editor-fold>
+    // <editor-fold desc="Listeners">
+    @Override
+    public void addListener(Container.ItemSetChangeListener listener) {
+        itemSetListeners.add(listener);
+        updateSourceListeners();
+    }
+
+    @Override
+    public void removeListener(Container.ItemSetChangeListener listener) {
+        itemSetListeners.remove(listener);
+        updateSourceListeners();
+    }
+
+    @Override
+    public void addListener(Property.ValueChangeListener listener) {
+        valueListeners.add(listener);
+        updateSourceListeners();
+    }
+
+    @Override
+    public void removeListener(Property.ValueChangeListener listener) {
+        valueListeners.remove(listener);
+        updateSourceListeners();
+    }
+
+    /**
+     * Listen to the sources only while someone listens to this container, so
+     * the sources don't keep a container no longer in use.
+     */
+    private void updateSourceListeners() {
+        boolean listened = !itemSetListeners.isEmpty()
+                || !valueListeners.isEmpty();
+        if (listened != sourceListener.attached) {
+            for (EventSource source : sources) {
+                if (listened) {
+                    sourceListener.attach(source.getContainer());
+                } else {
+                    sourceListener.detach(source.getContainer());
+                }
+            }
+            sourceListener.attached = listened;
+        }
+    }
+
+    /**
+     * Forwards the changes of the sources.
+     */
+    private class SourceListener implements Container.ItemSetChangeListener,
+            Property.ValueChangeListener {
+
+        boolean attached;
+
+        void attach(Container container) {
+            if (container instanceof Container.ItemSetChangeNotifier) {
+                ((Container.ItemSetChangeNotifier) container).addListener(
+                        (Container.ItemSetChangeListener) this);
+            }
+            if (container instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) container).addListener(
+                        (Property.ValueChangeListener) this);
+            }
+        }
+
+        void detach(Container container) {
+            if (container instanceof Container.ItemSetChangeNotifier) {
+                ((Container.ItemSetChangeNotifier) container).removeListener(
+                        (Container.ItemSetChangeListener) this);
+            }
+            if (container instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) container).removeListener(
+                        (Property.ValueChangeListener) this);
+            }
+        }
+
+        @Override
+        public void containerItemSetChange(Container.ItemSetChangeEvent event) {
+            order = null;
+            indexes = null;
+            Container.ItemSetChangeEvent merged = new ItemSetChangeEvent();
+            for (Container.ItemSetChangeListener listener
+                    : new ArrayList<Container.ItemSetChangeListener>(
+                            itemSetListeners)) {
+                listener.containerItemSetChange(merged);
+            }
+        }
+
+        @Override
+        public void valueChange(Property.ValueChangeEvent event) {
+            // The start may have changed.
+            order = null;
+            indexes = null;
+            for (Property.ValueChangeListener listener
+                    : new ArrayList<Property.ValueChangeListener>(
+                            valueListeners)) {
+                listener.valueChange(event);
+            }
+        }
+
+    }
+
+    private class ItemSetChangeEvent implements Container.ItemSetChangeEvent {
+
+        @Override
+        public Container getContainer() {
+            return MergedEventContainer.this;
+        }
+
+    }
+
+    // </editor-fold>
+    /**
+     * An item of a source, with the group and class name of the source.
+     */
+    private class MergedItem implements Item {
+
+        private final EventSource source;
+
+        private final Item item;
+
+        MergedItem(EventSource source, Item item) {
+            this.source = source;
+            this.item = item;
+        }
+
+        @Override
+        public Property getItemProperty(Object id) {
+            if (id.equals(groupPropertyId) && source.getGroup() != null) {
+                return new ObjectProperty<String>(source.getGroup(),
+                        String.class, true);
+            }
+            if (id.equals(classNamePropertyId)
+                    && source.getClassName() != null) {
+                return new ObjectProperty<String>(source.getClassName(),
+                        String.class, true);
+            }
+            return item.getItemProperty(id);
+        }
+
+        @Override
+        public Collection<?> getItemPropertyIds() {
+            return getContainerPropertyIds();
+        }
+
+        @Override
+        public boolean addItemProperty(Object id, Property property) {
+            throw new UnsupportedOperationException(
+                    "Merged event sources are read-only.");
+        }
+
+        @Override
+        public boolean removeItemProperty(Object id) {
+            throw new UnsupportedOperationException(
+                    "Merged event sources are read-only.");
+        }
+
+    }
+
+}
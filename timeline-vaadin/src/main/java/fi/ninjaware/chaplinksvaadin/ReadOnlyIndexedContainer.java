@@ -0,0 +1,117 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+/**
+ * Base class for the event containers that can't be modified through the
+ * container interface. The ordered access is implemented with the indexed
+ * access.
+ *
+ * @author miku
+ */
+abstract class ReadOnlyIndexedContainer implements Container.Indexed {
+
+    @Override
+    public Property getContainerProperty(Object itemId, Object propertyId) {
+        Item item = getItem(itemId);
+        return item == null ? null : item.getItemProperty(propertyId);
+    }
+
+    @Override
+    public boolean containsId(Object itemId) {
+        return getItem(itemId) != null;
+    }
+
+    @Override
+    public Object nextItemId(Object itemId) {
+        int index = indexOfId(itemId);
+        return index < 0 || index + 1 >= size() ? null
+                : getIdByIndex(index + 1);
+    }
+
+    @Override
+    public Object prevItemId(Object itemId) {
+        int index = indexOfId(itemId);
+        return index <= 0 ? null : getIdByIndex(index - 1);
+    }
+
+    @Override
+    public Object firstItemId() {
+        return size() == 0 ? null : getIdByIndex(0);
+    }
+
+    @Override
+    public Object lastItemId() {
+        int size = size();
+        return size == 0 ? null : getIdByIndex(size - 1);
+    }
+
+    @Override
+    public boolean isFirstId(Object itemId) {
+        return itemId != null && itemId.equals(firstItemId());
+    }
+
+    @Override
+    public boolean isLastId(Object itemId) {
+        return itemId != null && itemId.equals(lastItemId());
+    }
+
+    @Override
+    public Object addItemAt(int index) {
+        throw readOnly();
+    }
+
+    @Override
+    public Item addItemAt(int index, Object newItemId) {
+        throw readOnly();
+    }
+
+    @Override
+    public Object addItemAfter(Object previousItemId) {
+        throw readOnly();
+    }
+
+    @Override
+    public Item addItemAfter(Object previousItemId, Object newItemId) {
+        throw readOnly();
+    }
+
+    @Override
+    public Item addItem(Object itemId) {
+        throw readOnly();
+    }
+
+    @Override
+    public Object addItem() {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean removeItem(Object itemId) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean addContainerProperty(Object propertyId, Class<?> type,
+            Object defaultValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean removeContainerProperty(Object propertyId) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean removeAllItems() {
+        throw readOnly();
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException(getClass().getSimpleName()
+                + " is read-only.");
+    }
+
+}
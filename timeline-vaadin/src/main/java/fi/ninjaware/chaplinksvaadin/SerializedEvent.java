@@ -0,0 +1,73 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.terminal.Resource;
+import com.vaadin.ui.Alignment;
+import java.io.Serializable;
+
+/**
+ * A single event serialized for the client side, along with the data needed
+ * to decide when and how to send it.
+ *
+ * @author miku
+ */
+class SerializedEvent implements Serializable {
+
+    /**
+     * The event handle.
+     */
+    final int handle;
+
+    /**
+     * Event start in milliseconds.
+     */
+    final long start;
+
+    /**
+     * Event end in milliseconds. Same as <code>start</code> for events without
+     * an end.
+     */
+    final long end;
+
+    /**
+     * Event group, or an empty string.
+     */
+    final String group;
+
+    /**
+     * The event as a JSON array.
+     */
+    final String json;
+
+    /**
+     * Event icon or null.
+     */
+    final Resource icon;
+
+    /**
+     * Event icon alignment or null.
+     */
+    final Alignment iconAlignment;
+
+    SerializedEvent(int handle, long start, long end, String group,
+            String json, Resource icon, Alignment iconAlignment) {
+        this.handle = handle;
+        this.start = start;
+        this.end = end;
+        this.group = group;
+        this.json = json;
+        this.icon = icon;
+        this.iconAlignment = iconAlignment;
+    }
+
+    /**
+     * Check whether the event overlaps a time range.
+     *
+     * @param rangeStart Range start in milliseconds.
+     * @param rangeEnd Range end in milliseconds.
+     * @return True, if the event overlaps the range.
+     */
+    boolean overlaps(long rangeStart, long rangeEnd) {
+        return start <= rangeEnd && end >= rangeStart;
+    }
+
+}
@@ -0,0 +1,108 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serialized events sorted by their start. Used to find the events overlapping
+ * a time range without scanning all of them.
+ *
+ * @author miku
+ */
+class SerializedEventIndex implements Serializable {
+
+    /**
+     * Orders the events by their start.
+     */
+    static final Comparator<SerializedEvent> BY_START
+            = new StartComparator();
+
+    /**
+     * The events sorted by start.
+     */
+    private final List<SerializedEvent> events;
+
+    /**
+     * The longest event duration in milliseconds. Bounds how far before a
+     * range an overlapping event can start.
+     */
+    private final long maxDuration;
+
+    SerializedEventIndex(Collection<SerializedEvent> events) {
+        this.events = new ArrayList<SerializedEvent>(events);
+        Collections.sort(this.events, BY_START);
+
+        long max = 0;
+        for (SerializedEvent event : this.events) {
+            max = Math.max(max, event.end - event.start);
+        }
+        maxDuration = max;
+    }
+
+    /**
+     * Get all the events.
+     *
+     * @return The events sorted by their start.
+     */
+    List<SerializedEvent> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * Find the events overlapping a time range.
+     *
+     * @param start Range start in milliseconds.
+     * @param end Range end in milliseconds.
+     * @return The overlapping events sorted by their start.
+     */
+    List<SerializedEvent> query(long start, long end) {
+        List<SerializedEvent> result = new ArrayList<SerializedEvent>();
+
+        // Binary search for the first event that can overlap the range.
+        long from = start - maxDuration;
+        int lo = 0, hi = events.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.get(mid).start < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        for (int i = lo; i < events.size(); i++) {
+            SerializedEvent event = events.get(i);
+            if (event.start > end) {
+                break;
+            }
+            if (event.end >= start) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of events in the index.
+     *
+     * @return The number of events.
+     */
+    int size() {
+        return events.size();
+    }
+
+    private static class StartComparator implements
+            Comparator<SerializedEvent>, Serializable {
+
+        @Override
+        public int compare(SerializedEvent o1, SerializedEvent o2) {
+            return o1.start < o2.start ? -1 : (o1.start > o2.start ? 1 : 0);
+        }
+
+    }
+
+}
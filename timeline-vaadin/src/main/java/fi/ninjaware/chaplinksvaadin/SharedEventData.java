@@ -0,0 +1,246 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Property;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Read-only event data shown on the timelines of many sessions. The events
+ * are encoded once per data version and timeline configuration, and every
+ * timeline showing the data uses the same encoding. Each timeline keeps only
+ * its view state, such as the events it has sent.
+ * <p>
+ * Set with {@link Timeline#setSharedEventData(SharedEventData)}. Event
+ * filters aren't added to the shared container, but applied when encoding,
+ * so the timelines with the same filter share the encoding.
+ *
+ * @author miku
+ */
+public class SharedEventData implements Serializable {
+
+    /**
+     * Encodes the events.
+     */
+    interface Encoder {
+
+        /**
+         * Encode the events.
+         *
+         * @param version The version of the data.
+         * @return The encoded events.
+         */
+        EncodedEvents encode(long version);
+
+    }
+
+    /**
+     * The most encodings of one version kept. Each holds all the events, and
+     * a timeline configuration no longer used is never asked again.
+     */
+    private static final int MAX_ENCODINGS = 8;
+
+    /**
+     * An encoding of a version, done by the first timeline asking for it.
+     */
+    private static class Encoding {
+
+        final long version;
+
+        final FutureTask<EncodedEvents> task;
+
+        Encoding(long version, FutureTask<EncodedEvents> task) {
+            this.version = version;
+            this.task = task;
+        }
+
+    }
+
+    private final Container.Indexed container;
+
+    /**
+     * The event handles shared by all the timelines, since the encoded
+     * events refer to them.
+     */
+    private final EventHandles handles = new EventHandles();
+
+    /**
+     * Increased every time the container changes.
+     */
+    private volatile long version = 0;
+
+    /**
+     * The encodings of the current version, least recently used first. Key =
+     * the timeline configuration affecting the encoding. Not serialized,
+     * since the tasks can't be.
+     */
+    private transient Map<Object, Encoding> encodings;
+
+    public SharedEventData(Container.Indexed container) {
+        this.container = container;
+
+        ChangeListener listener = new ChangeListener();
+        if (container instanceof Container.ItemSetChangeNotifier) {
+            ((Container.ItemSetChangeNotifier) container).addListener(
+                    (Container.ItemSetChangeListener) listener);
+        }
+        if (container instanceof Container.PropertySetChangeNotifier) {
+            ((Container.PropertySetChangeNotifier) container).addListener(
+                    (Container.PropertySetChangeListener) listener);
+        }
+        if (container instanceof Property.ValueChangeNotifier) {
+            ((Property.ValueChangeNotifier) container).addListener(
+                    (Property.ValueChangeListener) listener);
+        }
+    }
+
+    public Container.Indexed getContainer() {
+        return container;
+    }
+
+    EventHandles getHandles() {
+        return handles;
+    }
+
+    /**
+     * Get the version of the data, increased every time the container
+     * changes.
+     *
+     * @return The version.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the encoding of the current version for a configuration. If there
+     * is none, the calling timeline encodes the events, and the timelines
+     * asking for the same configuration meanwhile wait for it, so the same
+     * version is never encoded twice. The timelines with other
+     * configurations don't wait.
+     *
+     * @param key The timeline configuration affecting the encoding.
+     * @param encoder Encodes the events, if needed.
+     * @return The encoded events.
+     */
+    EncodedEvents encode(Object key, final Encoder encoder) {
+        final long current = version;
+        Encoding encoding;
+        boolean encodeHere = false;
+        synchronized (this) {
+            if (encodings == null) {
+                encodings = new EncodingCache();
+            }
+            encoding = encodings.get(key);
+            if (encoding == null || encoding.version != current) {
+                // The encodings of the older versions are no longer needed.
+                Iterator<Encoding> it = encodings.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().version != current) {
+                        it.remove();
+                    }
+                }
+
+                encoding = new Encoding(current, new FutureTask<EncodedEvents>(
+                        new Callable<EncodedEvents>() {
+
+                            @Override
+                            public EncodedEvents call() {
+                                return encoder.encode(current);
+                            }
+
+                        }));
+                encodings.put(key, encoding);
+                encodeHere = true;
+            }
+        }
+
+        if (encodeHere) {
+            encoding.task.run();
+        }
+        try {
+            return await(encoding.task);
+        } catch (ExecutionException ex) {
+            // Let the next timeline try again.
+            synchronized (this) {
+                if (encodings.get(key) == encoding) {
+                    encodings.remove(key);
+                }
+            }
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Wait for an encoding, even if the thread is interrupted meanwhile.
+     */
+    private static EncodedEvents await(FutureTask<EncodedEvents> task)
+            throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Keeps the most recently used encodings.
+     */
+    private static class EncodingCache extends LinkedHashMap<Object, Encoding> {
+
+        EncodingCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Encoding> eldest) {
+            return size() > MAX_ENCODINGS;
+        }
+
+    }
+
+    private class ChangeListener implements
+            Container.ItemSetChangeListener,
+            Container.PropertySetChangeListener,
+            Property.ValueChangeListener {
+
+        @Override
+        public void containerItemSetChange(Container.ItemSetChangeEvent event) {
+            version++;
+        }
+
+        @Override
+        public void containerPropertySetChange(
+                Container.PropertySetChangeEvent event) {
+            version++;
+        }
+
+        @Override
+        public void valueChange(Property.ValueChangeEvent event) {
+            version++;
+        }
+
+    }
+
+}
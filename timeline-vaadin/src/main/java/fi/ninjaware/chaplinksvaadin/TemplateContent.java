@@ -0,0 +1,39 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Event content given as a content template and its parameters. Use as the
+ * value of the event content property instead of a string. Only the template
+ * id and the parameters are sent with the event, and the client side expands
+ * the template registered with
+ * {@link Timeline#addContentTemplate(String, String)}.
+ *
+ * @author miku
+ */
+public class TemplateContent implements Serializable {
+
+    private final String templateId;
+
+    private final Object[] params;
+
+    public TemplateContent(String templateId, Object... params) {
+        this.templateId = templateId;
+        this.params = params;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public Object[] getParams() {
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return templateId + Arrays.toString(params);
+    }
+
+}
@@ -1,39 +1,75 @@
 package fi.ninjaware.chaplinksvaadin;
 
+import com.vaadin.Application;
 import com.vaadin.data.Container;
 import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Or;
 import fi.ninjaware.chaplinksvaadin.gwt.client.timeline.VTimeline;
+import fi.ninjaware.chaplinksvaadin.gwt.client.timeline.VTimelineEvent;
 
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
 import com.vaadin.terminal.Resource;
-import com.vaadin.terminal.gwt.server.JsonPaintTarget;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.Alignment;
 import com.vaadin.ui.ClientWidget;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.Window;
 import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Server side component for the VTimeline widget.
+ * Server side component for the VTimeline widget. The widget is loaded lazily
+ * from its own GWT code split, and the timeline JavaScript is injected when
+ * the first timeline is shown, so applications not showing a timeline don't
+ * download either.
+ * <p>
+ * The settings affecting how the events are encoded, like the chunk size,
+ * windowed loading, group virtualization, stacking and lazy content, take
+ * effect when the event data source is set.
  */
-@ClientWidget(VTimeline.class)
+@ClientWidget(value = VTimeline.class, loadStyle = ClientWidget.LoadStyle.LAZY)
 public class Timeline extends AbstractComponent {
 
     private static final Logger log = LoggerFactory.getLogger(Timeline.class);
 
+    /**
+     * Applications whose widgetset has already loaded the required JavaScript.
+     * Timelines attached to these applications skip the initialization
+     * handshake.
+     */
+    private static final Map<Application, Boolean> initializedApplications
+            = Collections.synchronizedMap(
+                    new WeakHashMap<Application, Boolean>());
+
     /**
      * Default values for event property Ids. I'm going to deliberately break
      * the DRY principle. Find the counterpart in the VTimeline class. Details:
@@ -214,31 +250,258 @@ public class Timeline extends AbstractComponent {
      */
     private Container.Indexed events;
 
+    /**
+     * All the serialized events in the order they are sent. Kept for sending
+     * them again, if the client loses them, and for summarizing collapsed
+     * groups.
+     */
+    private List<SerializedEvent> allSerializedEvents
+            = Collections.emptyList();
+
     /**
      * Serialized events to be sent to the client.
      */
-    private final List<String> serializedEvents = new ArrayList<String>();
+    private final List<SerializedEvent> serializedEvents
+            = new ArrayList<SerializedEvent>();
+
+    /**
+     * The number of <code>serializedEvents</code> already sent to the client.
+     */
+    private int sentEvents;
+
+    /**
+     * Serialized events sent only when the client requests the next chunk,
+     * after <code>serializedEvents</code> have all been sent. Used for the
+     * events of an expanded group outside the viewport.
+     */
+    private final List<SerializedEvent> deferredEvents
+            = new ArrayList<SerializedEvent>();
+
+    /**
+     * The number of serialized events overlapping the viewport. These are
+     * placed first in <code>serializedEvents</code> and sent in the first
+     * chunk.
+     */
+    private int initialWindowSize;
+
+    /**
+     * True, when the next events sent replace the client side events. False,
+     * when they are appended to them.
+     */
+    private boolean replaceEvents;
+
+    /**
+     * True, when the client side has requested the next chunk of events.
+     */
+    private boolean chunkRequested;
+
+    /**
+     * The maximum number of events sent to the client in one response. The
+     * events overlapping the viewport are sent first and the rest in chunks
+     * requested by the client. Zero or less sends all the events at once.
+     * Default: 0.
+     */
+    private int chunkSize = 0;
+
+    /**
+     * Set to true to send only the events in the time windows requested by
+     * the client. The client requests the windows around the visible range
+     * and prefetches the ones it is panning towards.
+     * Default: false.
+     */
+    private boolean windowedLoading = false;
+
+    /**
+     * Set to true to fetch the time windows over plain HTTP instead of the
+     * UIDL responses, when using windowed loading. The windows can then be
+     * cached by browsers and proxies.
+     * Default: false.
+     */
+    private boolean httpDataChannel = false;
+
+    /**
+     * Set to true to send only a short plain text preview of the event
+     * contents. The full content is sent when the user selects the event.
+     * Default: false.
+     */
+    private boolean lazyContent = false;
+
+    /**
+     * The maximum length of the content previews in characters.
+     * Default: 20.
+     */
+    private int contentPreviewLength = 20;
+
+    /**
+     * The most common value of each defaultable field. Key = field name.
+     */
+    private Map<String, String> columnDefaults
+            = Collections.emptyMap();
+
+    /**
+     * The most common values in each group, where they differ from the
+     * column defaults. Key = group, Value = defaults keyed by field name.
+     */
+    private Map<String, Map<String, String>> groupDefaults
+            = Collections.emptyMap();
+
+    /**
+     * The content templates. Key = template id, Value = template.
+     */
+    private final Map<String, String> contentTemplates
+            = new LinkedHashMap<String, String>();
+
+    /**
+     * Set to true to compute the stacking of the events on the server side.
+     * Each event is sent with its lane, and the client places the events by
+     * their lanes instead of checking them for overlap on every redraw.
+     * Default: false.
+     */
+    private boolean serverStacking = false;
+
+    /**
+     * Set to true to send only the events of the groups scrolled into view.
+     * Default: false.
+     */
+    private boolean groupVirtualization = false;
+
+    /**
+     * The number of threads encoding events in the background.
+     */
+    private static final int PRE_ENCODER_THREADS = Math.max(1,
+            Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * The most timelines waiting for their events to be encoded in the
+     * background.
+     */
+    private static final int PRE_ENCODER_QUEUE = 32;
+
+    /**
+     * The groups sent to the client, and the collapsed groups.
+     */
+    private final EventGroups groups = new EventGroups(this);
+
+    /**
+     * The maximum number of summary events per collapsed group.
+     * Default: 50.
+     */
+    private int summaryRanges = 50;
+
+    /**
+     * The events shown, or null to show all events.
+     */
+    private TimelineFilter eventFilter;
+
+    /**
+     * The event filter as a container filter. Added to the event container,
+     * if it is filterable, and otherwise applied when serializing.
+     */
+    private Container.Filter containerFilter;
+
+    /**
+     * The handles of the events to remove on the client side, when sending
+     * the changes since <code>baseVersion</code> instead of all the events.
+     */
+    private final List<Integer> removedEvents = new ArrayList<Integer>();
+
+    /**
+     * The version of the events the client must have for the removed and
+     * queued events to apply, or -1 when sending all the events.
+     */
+    private long baseVersion = -1;
+
+    /**
+     * The content search, and the full contents requested by the client.
+     */
+    private final ContentSearch contentSearch = new ContentSearch(this);
+
+    /**
+     * Identifies the event data across sessions. When set, the client keeps
+     * the past time windows in the browser storage over page reloads, when
+     * using windowed loading.
+     * Default: null.
+     */
+    private String datasetId;
+
+    /**
+     * Serves the time windows when using the HTTP data channel.
+     */
+    private final WindowResourceHandler windowResources
+            = new WindowResourceHandler(this);
+
+    /**
+     * The time windows indexed and requested, when using windowed loading.
+     */
+    private final WindowLoader windows = new WindowLoader(windowResources);
+
+    /**
+     * The version of the event data source. Increased every time the data
+     * source is set or its contents change.
+     */
+    private long containerVersion = 0;
+
+    /**
+     * True, when the event data source has changed in a thread not holding
+     * the application lock, e.g. a writer of an event store. The container
+     * version is increased in a request of the session instead.
+     */
+    private volatile boolean changedOutside;
+
+    /**
+     * The version of the serialized events, i.e. the version of the event
+     * data source when it was last serialized. The client tags the windows it
+     * caches with it.
+     */
+    private long dataVersion = 0;
+
+    /**
+     * The version of the events the client reports it has.
+     */
+    private long clientVersion = -1;
+
+    /**
+     * Listens to the changes of the event data source.
+     */
+    private final EventContainerListener containerListener
+            = new EventContainerListener();
+
+    /**
+     * The memory budget in bytes of the client side window cache in windowed
+     * loading.
+     * Default: 4 MB.
+     */
+    private int windowCacheBudget = 4 * 1024 * 1024;
 
     /**
      * The field map of the serialized events. Key = <code>events</code>
      * container id, Value = enumerable name.
      */
-    private final Map<Object, String> serializedFields
-            = new LinkedHashMap<Object, String>();
+    private Map<Object, String> serializedFields = Collections.emptyMap();
+
+    /**
+     * Integer handles of the events sent to the client. The handles are used
+     * instead of the <code>events</code> container ids in all references
+     * between the client and the server.
+     */
+    private final EventHandles eventHandles = new EventHandles();
+
+    /**
+     * The event data shared with the timelines of other sessions, or null.
+     */
+    private SharedEventData sharedData;
 
     /**
-     * A map for the event icons. Key = <code>events</code> container id, Value
-     * = Icon resource.
+     * The version of the shared event data when the container version was
+     * last increased for it.
      */
-    private final Map<Object, Resource> eventIcons
-            = new LinkedHashMap<Object, Resource>();
+    private long sharedVersion;
 
     /**
-     * A map for the event icon alignments. Key = <code>events</code> container
-     * id, Value = Icon alignment.
+     * The encoded events, possibly shared with other timelines.
      */
-    private final Map<Object, Alignment> eventIconAlignments
-            = new LinkedHashMap<Object, Alignment>();
+    private EncodedEvents encoded;
+
 
     /**
      * Set to true to allow add, modify and delete operations on the timeline.
@@ -289,12 +552,57 @@ public class Timeline extends AbstractComponent {
      * Default: true.
      */
     private boolean showNavigation = true;
+
+    /**
+     * Set to true to render only the events near the visible range on the
+     * client side. The client keeps all the events, but the DOM size stays
+     * proportional to what is on screen.
+     * Default: false.
+     */
+    private boolean renderCulling = false;
     
     /**
      * True, when the required JavaScript has been loaded.
      */
     private boolean js_initialized;
 
+    /**
+     * Encodes the events of the timelines whose client side is loading the
+     * JavaScript. When all the threads are busy and the queue is full, the
+     * events are encoded in the request after the JavaScript has loaded.
+     */
+    private static final ThreadPoolExecutor preEncoder
+            = new ThreadPoolExecutor(PRE_ENCODER_THREADS, PRE_ENCODER_THREADS,
+                    30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(PRE_ENCODER_QUEUE),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "timeline-pre-encoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+
+    static {
+        preEncoder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The events being encoded in the background while the client side
+     * loads the JavaScript. Not serialized, since the task can't be.
+     */
+    private transient Future<EncodedEvents> preEncoded;
+
+    /**
+     * The configuration and the container version the events are encoded
+     * in the background with.
+     */
+    private transient Object preEncodedKey;
+
     /**
      * The one and only constructor.
      */
@@ -305,138 +613,515 @@ public class Timeline extends AbstractComponent {
         setWidth(500, UNITS_PIXELS);
     }
 
+    @Override
+    public void attach() {
+        super.attach();
+
+        if (!js_initialized && initializedApplications
+                .containsKey(getApplication())) {
+            js_initialized = true;
+        }
+
+        if (httpDataChannel) {
+            windowResources.attach(getWindow());
+        }
+
+        // Listen to the events only while attached, so the container doesn't
+        // keep a timeline no longer shown. The changes made in the meantime
+        // were missed.
+        if (events != null) {
+            containerListener.listen(sharedData == null ? events : null);
+            containerVersion++;
+        }
+    }
+
+    @Override
+    public void detach() {
+        containerListener.listen(null);
+        cancelPreEncoding();
+        windowResources.detach(getWindow());
+
+        super.detach();
+    }
+
+    /**
+     * Serialize the events. If the client side is still loading the
+     * JavaScript, the serialization is postponed until the client reports
+     * that it has loaded, so the first response isn't delayed by it. The
+     * events are encoded in the background meanwhile; see
+     * {@link #preEncodeEvents()}.
+     */
+    private void serializeEvents() {
+        if (js_initialized) {
+            generateSerializedEvents();
+        }
+    }
+
     private void generateSerializedEvents() {
+        long version = containerVersion;
+
+        EncodedEvents preEncodedEvents = takePreEncoded();
+        if (sharedData != null) {
+            // The events encoded in the background are in the shared cache.
+            final SharedEventData shared = sharedData;
+            final EventEncoder encoder = createEncoder();
+            encoded = sharedData.encode(getEncodingKey(),
+                    new SharedEventData.Encoder() {
+
+                        @Override
+                        public EncodedEvents encode(long sharedVersion) {
+                            return encoder.encode(shared.getContainer(),
+                                    sharedVersion);
+                        }
+
+                    });
+        } else if (preEncodedEvents != null) {
+            encoded = preEncodedEvents;
+        } else {
+            // A store of concurrently written events is read from a
+            // snapshot, so the writes don't change the events while they're
+            // read. The appended events are merged in first.
+            encoded = createEncoder().encode(events instanceof EventStore
+                    ? ((EventStore) events).flush() : events, version);
+        }
+        serializedFields = encoded.fields;
+        columnDefaults = encoded.columnDefaults;
+        groupDefaults = encoded.groupDefaults;
+        List<SerializedEvent> serialized = encoded.events;
+
+        dataVersion = version;
+        groups.reset(encoded, groupVirtualization);
+        initialWindowSize = 0;
+
+        // With windowed loading the events are sent as the client requests
+        // their windows.
+        if (!windowedLoading && viewportStart != null && viewportEnd != null) {
+            // Send the events in the viewport first. The client draws them
+            // first, and when sending in chunks, they are all in the first
+            // chunk.
+            long rangeStart = viewportStart.getTime();
+            long rangeEnd = viewportEnd.getTime();
+            allSerializedEvents = new ArrayList<SerializedEvent>(
+                    serialized.size());
+            List<SerializedEvent> rest = new ArrayList<SerializedEvent>();
+            for (SerializedEvent event : serialized) {
+                if (event.overlaps(rangeStart, rangeEnd)) {
+                    allSerializedEvents.add(event);
+                } else {
+                    rest.add(event);
+                }
+            }
+            initialWindowSize = allSerializedEvents.size();
+            allSerializedEvents.addAll(rest);
+        } else {
+            allSerializedEvents = serialized;
+        }
 
-        serializedFields.clear();
+        windows.build(encoded, allSerializedEvents, groups, windowedLoading);
+        resendEvents();
+    }
 
-        boolean iconFieldExists = false, iconAlignmentFieldExists = false;
+    /**
+     * The timeline configuration affecting the encoding of the events. The
+     * timelines with equal keys can share the encoding.
+     *
+     * @return The key.
+     */
+    private Object getEncodingKey() {
+        return Arrays.asList(eventStartPropertyId, eventEndPropertyId,
+                eventContentPropertyId, eventGroupPropertyId,
+                eventClassNamePropertyId, eventEditablePropertyId,
+                eventTypePropertyId, eventIconPropertyId,
+                eventIconAlignmentPropertyId, lazyContent,
+                contentPreviewLength, serverStacking, containerFilter,
+                new HashMap<String, String>(contentTemplates));
+    }
 
-        // Required fields
-        serializedFields.put(eventStartPropertyId,
-                EventFields.START.toString());
-        serializedFields.put(eventContentPropertyId,
-                EventFields.CONTENT.toString());
+    /**
+     * Create an encoder with the current configuration. The encoder applies
+     * the event filter, unless the container does.
+     *
+     * @return The encoder.
+     */
+    private EventEncoder createEncoder() {
+        return new EventEncoder(this, getLocalFilter(), handles(),
+                contentTemplates);
+    }
 
-        // Optional fields
-        Collection<?> propIds = events.getContainerPropertyIds();
-        if (propIds.contains(eventEndPropertyId)) {
-            serializedFields.put(eventEndPropertyId,
-                    EventFields.END.toString());
+    /**
+     * Start encoding the events in the background while the client side
+     * loads the JavaScript, so the first paint after it has loaded only
+     * picks up the result. The event properties are copied holding the
+     * application lock, in the paint before the client has loaded the
+     * JavaScript, and the copy is encoded in another thread. A store of
+     * concurrently written events is encoded from its snapshot, and shared
+     * event data into the shared cache.
+     */
+    private void preEncodeEvents() {
+        final Object key = Arrays.asList(getEncodingKey(), containerVersion);
+        if (preEncoded != null && key.equals(preEncodedKey)) {
+            return;
+        }
+        cancelPreEncoding();
+
+        final EventEncoder encoder;
+        final Container.Indexed source;
+        final SharedEventData shared = sharedData;
+        if (shared != null) {
+            encoder = createEncoder();
+            source = shared.getContainer();
+        } else if (events instanceof EventStore) {
+            encoder = createEncoder();
+            source = ((EventStore) events).flush();
+        } else {
+            // The items are filtered while copied.
+            encoder = new EventEncoder(this, null, handles(),
+                    contentTemplates);
+            source = new ContainerSnapshot(events, encoder.getPropertyIds(),
+                    getLocalFilter());
+        }
+        final long version = containerVersion;
+        final Object encodingKey = getEncodingKey();
+        try {
+            preEncoded = preEncoder.submit(new Callable<EncodedEvents>() {
+
+                @Override
+                public EncodedEvents call() {
+                    if (shared == null) {
+                        return encoder.encode(source, version);
+                    }
+                    return shared.encode(encodingKey,
+                            new SharedEventData.Encoder() {
+
+                                @Override
+                                public EncodedEvents encode(
+                                        long sharedVersion) {
+                                    return encoder.encode(source,
+                                            sharedVersion);
+                                }
+
+                            });
+                }
+
+            });
+            preEncodedKey = key;
+        } catch (RejectedExecutionException ex) {
+            log.debug("Pre-encoder busy, encoding the events later.");
         }
-        if (propIds.contains(eventGroupPropertyId)) {
-            serializedFields.put(eventGroupPropertyId,
-                    EventFields.GROUP.toString());
+    }
+
+    /**
+     * Take the events encoded in the background, if they were encoded from
+     * the current events with the current configuration. An encoding still
+     * running is waited for, since it's already underway.
+     *
+     * @return The encoded events, or null if the events need to be encoded.
+     */
+    private EncodedEvents takePreEncoded() {
+        Future<EncodedEvents> future = preEncoded;
+        Object key = preEncodedKey;
+        preEncoded = null;
+        preEncodedKey = null;
+        if (future == null) {
+            return null;
         }
-        if (propIds.contains(eventClassNamePropertyId)) {
-            serializedFields.put(eventClassNamePropertyId,
-                    EventFields.CLASSNAME.toString());
+        if (!key.equals(Arrays.asList(getEncodingKey(), containerVersion))) {
+            future.cancel(false);
+            return null;
         }
-        if (propIds.contains(eventEditablePropertyId)) {
-            serializedFields.put(eventEditablePropertyId,
-                    EventFields.EDITABLE.toString());
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            log.warn("Encoding the events in the background failed.",
+                    ex.getCause());
         }
-        if (propIds.contains(eventTypePropertyId)) {
-            serializedFields.put(eventTypePropertyId,
-                    EventFields.TYPE.toString());
+        return null;
+    }
+
+    /**
+     * Cancel the background encoding of the events, if it hasn't started.
+     */
+    private void cancelPreEncoding() {
+        if (preEncoded != null) {
+            preEncoded.cancel(false);
+            preEncoded = null;
+            preEncodedKey = null;
         }
-        if (propIds.contains(eventIconPropertyId)) {
-            iconFieldExists = true;
+    }
+
+    /**
+     * Find the events whose content contains all the words of the query. The
+     * search is case insensitive, ignores HTML tags, and the last word
+     * matches the beginnings of words. Only the events passing the event
+     * filter are found. The index of the contents is built on the first
+     * search, and kept up to date after that.
+     *
+     * @param query The query.
+     * @return The item ids of the events sorted by the event start.
+     */
+    public List<Object> search(String query) {
+        if (events == null) {
+            return Collections.emptyList();
         }
-        if (propIds.contains(eventIconAlignmentPropertyId)) {
-            iconAlignmentFieldExists = true;
+        checkDataChanged();
+
+        List<Object> itemIds = new ArrayList<Object>();
+        for (Integer handle : contentSearch.search(query)) {
+            itemIds.add(handles().getItemId(handle));
         }
+        return itemIds;
+    }
 
-        Set<Object> containerProps = serializedFields.keySet();
+    /**
+     * Move the viewport to show an event, e.g. a search result. The event is
+     * centered and the viewport keeps its length. If the viewport isn't set,
+     * or the event doesn't fit in it, the viewport is fitted to the event.
+     *
+     * @param itemId The item id of the event.
+     * @throws IllegalArgumentException if the item isn't an event of the
+     * event data source, or the event has no start.
+     */
+    public void showEvent(Object itemId) {
+        Item item = events == null || itemId == null ? null
+                : events.getItem(itemId);
+        if (item == null) {
+            throw new IllegalArgumentException("No such event: " + itemId);
+        }
+        Date start = (Date) item.getItemProperty(eventStartPropertyId)
+                .getValue();
+        if (start == null) {
+            throw new IllegalArgumentException("Event has no start: "
+                    + itemId);
+        }
+        Date end = null;
+        if (events.getContainerPropertyIds().contains(eventEndPropertyId)) {
+            end = (Date) item.getItemProperty(eventEndPropertyId).getValue();
+        }
+        long eventStart = start.getTime();
+        long eventEnd = end != null ? end.getTime() : eventStart;
 
-        // Iterate the events and add them to the serializedEvents list
-        serializedEvents.clear();
-        for (int i = 0; i < events.size(); i++) {
-            Object id = events.getIdByIndex(i);
-            Item item = events.getItem(id);
-
-            StringBuilder srlzd = new StringBuilder();
-            srlzd.append("[");
-
-            srlzd.append("\"")
-                    .append(JsonPaintTarget.escapeJSON(id.toString()))
-                    .append("\"")
-                    .append(",");
-
-            // Event start
-            Date startDate = (Date) item
-                    .getItemProperty(eventStartPropertyId).getValue();
-            if (startDate == null) {
-                log.warn("Event start of item '{}' is null. "
-                        + "Skipping item.", id);
-                continue;
-            }
-            srlzd.append("\"")
-                    .append(String.valueOf(startDate.getTime()))
-                    .append("\"");
-
-            Iterator<?> propIterator = containerProps.iterator();
-            propIterator.next(); // Start date was already handled.
-            while (propIterator.hasNext()) {
-                Object propertyId = propIterator.next();
-                Object property = item.getItemProperty(propertyId).getValue();
-                Class<?> type = events.getType(propertyId);
-
-                srlzd.append(",") // add delimiter
-                        .append("\"");
-
-                if (type.isAssignableFrom(Date.class)) {
-                    Date date = (Date) property;
-                    String strValue = "";
-                    if (date != null) {
-                        strValue = String.valueOf(date.getTime());
-                    }
-                    srlzd.append(strValue);
-                } else if (type.isAssignableFrom(Boolean.class)) {
-                    Boolean bool = (Boolean) property;
-                    srlzd.append(bool == null ? Boolean.FALSE.toString()
-                            : bool.toString());
-                } else if (type.isAssignableFrom(EventType.class)) {
-                    EventType eventType = (EventType) property;
-                    srlzd.append(eventType == null
-                            ? EventType.getDefault().value()
-                            : eventType.value());
-                } else {
-                    String value = property == null ? "" : property.toString();
-                    srlzd.append(JsonPaintTarget.escapeJSON(value));
-                }
-                srlzd.append("\"");
+        long length = 0;
+        if (viewportStart != null && viewportEnd != null) {
+            length = viewportEnd.getTime() - viewportStart.getTime();
+        }
+        if (length <= eventEnd - eventStart) {
+            // A tenth of the length as margins on both sides.
+            length = Math.max(1, (eventEnd - eventStart) * 12 / 10);
+        }
+        long center = eventStart + (eventEnd - eventStart) / 2;
+        setVisibleChartRange(new Date(center - length / 2),
+                new Date(center - length / 2 + length));
+    }
+
+    /**
+     * Queue the events of an expanded group. The events in the viewport are
+     * sent on the next paint, and the rest when the client asks for the
+     * next chunk.
+     *
+     * @param group The group.
+     */
+    private void queueExpandedGroup(String group) {
+        if (viewportStart == null || viewportEnd == null) {
+            serializedEvents.addAll(groups.getGroupEvents(group));
+            return;
+        }
+        long rangeStart = viewportStart.getTime();
+        long rangeEnd = viewportEnd.getTime();
+        for (SerializedEvent event : groups.getGroupEvents(group)) {
+            if (event.overlaps(rangeStart, rangeEnd)) {
+                serializedEvents.add(event);
+            } else {
+                deferredEvents.add(event);
+            }
+        }
+    }
+
+    /**
+     * Drop the queued events of the given groups that haven't been sent yet.
+     *
+     * @param groups The groups.
+     */
+    private void dropQueuedEvents(Set<String> groups) {
+        Iterator<SerializedEvent> it = serializedEvents.subList(
+                sentEvents, serializedEvents.size()).iterator();
+        while (it.hasNext()) {
+            if (groups.contains(it.next().group)) {
+                it.remove();
             }
+        }
+        for (it = deferredEvents.iterator(); it.hasNext();) {
+            if (groups.contains(it.next().group)) {
+                it.remove();
+            }
+        }
+    }
 
-            // Icons and icon alignments
-            if (iconFieldExists) {
-                Resource icon = (Resource) item
-                        .getItemProperty(eventIconPropertyId).getValue();
+    /**
+     * Queue all the serialized events to be sent to the client, replacing the
+     * events it has.
+     */
+    private void resendEvents() {
+        serializedEvents.clear();
+        deferredEvents.clear();
+        removedEvents.clear();
+        baseVersion = -1;
+        groups.resend(isVirtualizingGroups());
+        if (!windowedLoading) {
+            serializedEvents.addAll(getShownEvents());
+        }
+        sentEvents = 0;
+        replaceEvents = true;
+        windows.clearRequests();
+    }
 
-                if (icon != null) {
-                    eventIcons.put(id, icon);
-                }
+    /**
+     * Get the events the client shows when not using windowed loading: the
+     * events of the sent groups, with the events of the collapsed groups
+     * replaced by their summaries.
+     *
+     * @return The events in the order they are sent.
+     */
+    private List<SerializedEvent> getShownEvents() {
+        return groups.getShownEvents(allSerializedEvents,
+                isVirtualizingGroups());
+    }
+
+    /**
+     * Serialize the events again, but queue only the changes to the events
+     * the client shows instead of all the events. The events that are gone
+     * or have changed are removed on the client side, and the new and
+     * changed events are sent. The changes of earlier unpainted calls are
+     * merged in.
+     */
+    private void serializeChanges() {
+        // The events the client has after the next paint: the shown events,
+        // except the ones still waiting in the queue.
+        Set<SerializedEvent> unsent = new HashSet<SerializedEvent>(
+                serializedEvents.subList(sentEvents, serializedEvents.size()));
+        unsent.addAll(deferredEvents);
+        Map<Integer, String> shown = new HashMap<Integer, String>();
+        for (SerializedEvent event : getShownEvents()) {
+            if (!unsent.contains(event)) {
+                shown.put(event.handle, event.json);
             }
-            if (iconAlignmentFieldExists) {
-                Alignment alignment = (Alignment) item
-                        .getItemProperty(eventIconAlignmentPropertyId)
-                        .getValue();
-                if (alignment != null) {
-                    eventIconAlignments.put(id, alignment);
-                }
+        }
+        List<String> pendingGroups = groups.takeRemoved();
+        List<Integer> pendingEvents = new ArrayList<Integer>(removedEvents);
+        long version = baseVersion >= 0 ? baseVersion : dataVersion;
+
+        generateSerializedEvents();
+
+        Map<Integer, String> current = new HashMap<Integer, String>();
+        List<SerializedEvent> added = new ArrayList<SerializedEvent>();
+        for (SerializedEvent event : serializedEvents) {
+            current.put(event.handle, event.json);
+            if (!event.json.equals(shown.get(event.handle))) {
+                added.add(event);
+            }
+        }
+        groups.removeOnClient(pendingGroups);
+        removedEvents.addAll(pendingEvents);
+        for (Map.Entry<Integer, String> event : shown.entrySet()) {
+            if (!event.getValue().equals(current.get(event.getKey()))) {
+                removedEvents.add(event.getKey());
+            }
+        }
+
+        serializedEvents.clear();
+        serializedEvents.addAll(added);
+        baseVersion = version;
+        replaceEvents = false;
+    }
+
+    /**
+     * Check whether group virtualization is in use. Windowed loading takes
+     * precedence over it.
+     *
+     * @return True, if only the events of the groups in view are sent.
+     */
+    private boolean isVirtualizingGroups() {
+        return groupVirtualization && !windowedLoading;
+    }
+
+    /**
+     * Queue the events of the groups scrolled into view, and mark the groups
+     * scrolled out of view for removal.
+     */
+    private void updateGroupRange() {
+        Set<String> removed = groups.dropOutOfRange();
+
+        // Events of the removed groups that haven't been sent yet are
+        // dropped, so the client doesn't add them back.
+        if (!removed.isEmpty()) {
+            dropQueuedEvents(removed);
+        }
+
+        for (String group : groups.takeIntoRange()) {
+            serializedEvents.addAll(groups.getGroupEvents(group));
+        }
+    }
+
+    /**
+     * Take the next batch of serialized events to send to the client. When
+     * sending in chunks, the first batch contains at least the events in the
+     * viewport and the following batches are sent only on client request.
+     * The deferred events are queued when the client requests more after
+     * the queued ones have been sent.
+     *
+     * @return The events to send. Possibly empty.
+     */
+    private List<SerializedEvent> nextEventBatch() {
+        if (chunkRequested && sentEvents == serializedEvents.size()) {
+            serializedEvents.clear();
+            sentEvents = 0;
+            serializedEvents.addAll(deferredEvents);
+            deferredEvents.clear();
+        }
+        int remaining = serializedEvents.size() - sentEvents;
+        int size = remaining;
+        if (chunkSize > 0) {
+            if (replaceEvents) {
+                size = Math.max(chunkSize, initialWindowSize);
+            } else if (chunkRequested) {
+                size = chunkSize;
+            } else {
+                size = 0;
             }
+        }
+        size = Math.min(size, remaining);
 
-            srlzd.append("]");
+        List<SerializedEvent> batch = new ArrayList<SerializedEvent>(
+                serializedEvents.subList(sentEvents, sentEvents + size));
+        sentEvents += size;
+        chunkRequested = false;
 
-            // Add the serialized event to the serialized events' list.
-            serializedEvents.add(srlzd.toString());
+        if (sentEvents == serializedEvents.size()) {
+            serializedEvents.clear();
+            sentEvents = 0;
         }
 
+        return batch;
     }
 
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
         super.paintContent(target);
 
+        // Serialize only if the event data source has changed since the last
+        // time. Unrelated updates don't cause serialization. Until the client
+        // has loaded the JavaScript, the events are encoded in the
+        // background.
+        checkDataChanged();
+        if (events != null && dataVersion != containerVersion) {
+            if (js_initialized) {
+                generateSerializedEvents();
+            } else {
+                preEncodeEvents();
+            }
+        }
+
         target.addAttribute(WIDTH.v, getWidth() + "");
         target.addAttribute(WIDTH_UNITS.v, UNIT_SYMBOLS[getWidthUnits()]);
         target.addAttribute(HEIGHT.v, getHeight() + "");
@@ -447,6 +1132,47 @@ public class Timeline extends AbstractComponent {
         target.addAttribute(STYLE.v, getEventStyle().toString());
         target.addAttribute(AXISONTOP.v, axisOnTop);
         target.addAttribute(NAVIGATION.v, showNavigation);
+        target.addAttribute(RENDER_CULLING.v, renderCulling);
+        target.addAttribute(LAZY_CONTENT.v, lazyContent);
+        target.addAttribute(SERVER_STACKING.v, serverStacking);
+        groups.paint(target, isVirtualizingGroups());
+        if (baseVersion >= 0) {
+            target.addAttribute(BASE_VERSION.v, baseVersion);
+            target.addAttribute(REMOVED_EVENTS.v,
+                    removedEvents.toArray(new Integer[removedEvents.size()]));
+            removedEvents.clear();
+            baseVersion = -1;
+        }
+
+        List<String> defaults = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : columnDefaults.entrySet()) {
+            defaults.add(entry.getKey());
+            defaults.add(entry.getValue());
+        }
+        target.addAttribute(COLUMN_DEFAULTS.v,
+                defaults.toArray(new String[defaults.size()]));
+        defaults.clear();
+        for (Map.Entry<String, Map<String, String>> group
+                : groupDefaults.entrySet()) {
+            for (Map.Entry<String, String> entry
+                    : group.getValue().entrySet()) {
+                defaults.add(group.getKey());
+                defaults.add(entry.getKey());
+                defaults.add(entry.getValue());
+            }
+        }
+        target.addAttribute(GROUP_DEFAULTS.v,
+                defaults.toArray(new String[defaults.size()]));
+
+        List<String> templates = new ArrayList<String>();
+        for (Map.Entry<String, String> template
+                : contentTemplates.entrySet()) {
+            templates.add(template.getKey());
+            templates.add(template.getValue());
+        }
+        target.addAttribute(CONTENT_TEMPLATES.v,
+                templates.toArray(new String[templates.size()]));
+        target.addAttribute(JS_INITIALIZED.v, js_initialized);
         if(getViewportStart() != null) {
             target.addAttribute(VIEWPORT_START.v, getViewportStart().getTime());
         }
@@ -468,22 +1194,49 @@ public class Timeline extends AbstractComponent {
         target.addAttribute(FIELDS.v, 
                 fields.toArray(new String[fields.size()]));
 
-        for (Object id : eventIcons.keySet()) {
-            target.addAttribute(ICON_PREFIX.v + id, eventIcons.get(id));
+        target.addAttribute(APPEND_EVENTS.v, !replaceEvents);
+        target.addAttribute(WINDOWED.v, windowedLoading);
+        target.addAttribute(DATA_VERSION.v, dataVersion);
+        target.addAttribute(WINDOW_CACHE_BUDGET.v, windowCacheBudget);
+        if (datasetId != null) {
+            target.addAttribute(DATASET_ID.v, datasetId);
         }
+        if (windowedLoading && httpDataChannel
+                && getWindowDataTag() != null) {
+            // URI handlers of sub windows are attached to the main window.
+            Window window = getWindow();
+            if (window.getParent() != null) {
+                window = window.getParent().getWindow();
+            }
+            target.addAttribute(DATA_URL.v, window.getURL()
+                    + WindowResourceHandler.getPath(getWindowDataTag()));
+        }
+        List<SerializedEvent> batch = new ArrayList<SerializedEvent>(
+                windowedLoading ? windows.nextBatch(target) : nextEventBatch());
+        replaceEvents = false;
+
+        String[] batchJson = new String[batch.size()];
+        for (int i = 0; i < batchJson.length; i++) {
+            SerializedEvent event = batch.get(i);
+            batchJson[i] = event.json;
 
-        for (Object id : eventIconAlignments.keySet()) {
-            target.addAttribute(ICONALIGN_PREFIX.v + id,
-                    eventIconAlignments.get(id).getBitMask());
+            if (event.icon != null) {
+                target.addAttribute(ICON_PREFIX.v + event.handle, event.icon);
+            }
+            if (event.iconAlignment != null) {
+                target.addAttribute(ICONALIGN_PREFIX.v + event.handle,
+                        event.iconAlignment.getBitMask());
+            }
         }
 
-        // TODO: Variable or attribute?
-        target.addVariable(this, EVENTS.v,
-                serializedEvents.toArray(new String[serializedEvents.size()]));
+        contentSearch.paintRequestedContents(target);
 
-        serializedEvents.clear();
-        eventIcons.clear();
-        eventIconAlignments.clear();
+        target.addAttribute(MORE_EVENTS.v,
+                sentEvents < serializedEvents.size()
+                || !deferredEvents.isEmpty());
+
+        // TODO: Variable or attribute?
+        target.addVariable(this, EVENTS.v, batchJson);
     }
 
     /**
@@ -568,47 +1321,344 @@ public class Timeline extends AbstractComponent {
         if (variables.containsKey(JS_INITIALIZED.v)) {
             log.debug("Google Visualization JavaScript loaded.");
             js_initialized = (Boolean) variables.get(JS_INITIALIZED.v);
+            if (js_initialized && getApplication() != null) {
+                initializedApplications.put(getApplication(), Boolean.TRUE);
+            }
+
+            // Paint the events postponed while the JavaScript was loading.
+            if (replaceEvents || dataVersion != containerVersion) {
+                requestRepaint();
+            }
+        }
+
+        if (variables.containsKey(DATA_VERSION.v)) {
+            // The client has lost the events, e.g. the page was reloaded.
+            clientVersion = (Long) variables.get(DATA_VERSION.v);
+            if (events != null && clientVersion != dataVersion) {
+                log.debug("Client has events version {}, resending {}.",
+                        clientVersion, dataVersion);
+                resendEvents();
+                requestRepaint();
+            }
+        }
+
+        if (variables.containsKey(WINDOW_REQUEST.v)) {
+            windows.request((String[]) variables.get(WINDOW_REQUEST.v));
+            requestRepaint();
+        }
+
+        if (variables.containsKey(CONTENT_REQUEST.v)) {
+            contentSearch.requestContent(
+                    (Integer) variables.get(CONTENT_REQUEST.v));
+            requestRepaint();
+        }
+
+        if (variables.containsKey(FIRST_GROUP.v)
+                || variables.containsKey(VISIBLE_GROUPS.v)) {
+            groups.setRange((Integer) variables.get(FIRST_GROUP.v),
+                    (Integer) variables.get(VISIBLE_GROUPS.v));
+            if (isVirtualizingGroups() && events != null) {
+                updateGroupRange();
+                requestRepaint();
+            }
+        }
+
+        if (variables.containsKey(NEXT_CHUNK.v)) {
+            chunkRequested = true;
+            requestRepaint();
+        }
+
+        for (String key : variables.keySet()) {
+            if (key.startsWith(NEW_EVENT.v)) {
+                // The variable is keyed by the handle the client gave the
+                // event.
+                Integer handle = parseAddedHandle(
+                        key.substring(NEW_EVENT.v.length()));
+                if (handle == null) {
+                    log.warn("Ignoring new event with invalid handle '{}'.",
+                            key);
+                    continue;
+                }
+                log.debug("Received new event {}.", handle);
+                String[] eventFields = (String[]) variables.get(key);
+                TimelineEvent timelineEvent = createEventFromFields(eventFields);
+                fireEvent(new EventAddEvent(this, timelineEvent, handle));
+            }
+        }
+
+    }
 
-            // TODO: paint (or not?).
+    /**
+     * Parse the handle of an event added on the client side.
+     *
+     * @param s The handle.
+     * @return The handle, or null if it isn't a handle reserved for the
+     * events added on the client side.
+     */
+    private static Integer parseAddedHandle(String s) {
+        try {
+            int handle = Integer.parseInt(s);
+            return handle <= VTimelineEvent.LAST_ADDED_HANDLE ? handle : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Create a TimelineEvent from eventFields received from the client side.
+     *
+     * @param eventFields A 3 or 4 cell String array containing the event
+     * fields.
+     * @return A new TimelineEvent.
+     */
+    private TimelineEvent createEventFromFields(String[] eventFields) {
+        TimelineEvent event = new TimelineEvent();
+
+        event.setStart(new Date(Long.parseLong(eventFields[0])));
+        event.setEnd(new Date(Long.parseLong(eventFields[1])));
+        event.setContent(eventFields[2]);
+        if (eventFields.length == 4) {
+            event.setGroup(eventFields[3]);
+        }
+
+        return event;
+    }
+
+    /**
+     * The version of the serialized events.
+     *
+     * @return The version.
+     */
+    long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * The serialized events sorted by start, when using windowed loading.
+     *
+     * @return The index or null.
+     */
+    SerializedEventIndex getWindowIndex() {
+        return windows.getIndex();
+    }
+
+    /**
+     * The version of the event data source.
+     *
+     * @return The version.
+     */
+    long getContainerVersion() {
+        return containerVersion;
+    }
+
+    /**
+     * The content templates.
+     *
+     * @return The templates keyed by template id.
+     */
+    Map<String, String> getContentTemplates() {
+        return contentTemplates;
+    }
+
+    /**
+     * The fields of the serialized events in order.
+     *
+     * @return The field names.
+     */
+    Collection<String> getSerializedFields() {
+        return new ArrayList<String>(serializedFields.values());
+    }
+
+    /**
+     * The most common value of each defaultable field.
+     *
+     * @return The defaults keyed by field name.
+     */
+    Map<String, String> getColumnDefaults() {
+        return columnDefaults;
+    }
+
+    /**
+     * The group defaults differing from the column defaults.
+     *
+     * @return The defaults keyed by group and field name.
+     */
+    Map<String, Map<String, String>> getGroupDefaults() {
+        return groupDefaults;
+    }
+
+    /**
+     * The tag identifying the contents of all the windows, used in the URLs
+     * of the HTTP data channel. It is a digest of the fields, their defaults
+     * and the events, so the same contents get the same URLs in every
+     * session, and changed contents get new ones.
+     *
+     * @return The tag, or null when not using windowed loading.
+     */
+    String getWindowDataTag() {
+        return windows.getDataTag();
+    }
+
+    @Override
+    public void requestRepaint() {
+        // Don't allow repaint until the javascript has loaded.
+        if (js_initialized) {
+            super.requestRepaint();
+        }
+    }
+
+    /**
+     * Repaint the timeline if its event data has changed outside the
+     * requests of this session. The timeline can't be repainted without the
+     * application lock, so a change notified in another thread, e.g. by the
+     * writers of an {@link EventStore}, or made to {@link SharedEventData} in
+     * another session, only marks the events changed. The changes are also
+     * picked up when the timeline is next painted for another reason.
+     * <p>
+     * Call this holding the application lock: in a request of the session,
+     * or in a background thread synchronized on the application, e.g. a timer
+     * refreshing the timeline while a polling ProgressIndicator or a push
+     * add-on such as ICEPush delivers the repaint to the browser.
+     *
+     * @return True, if the event data had changed.
+     */
+    public boolean refreshEventData() {
+        if (!checkDataChanged()) {
+            return false;
+        }
+        requestRepaint();
+        return true;
+    }
+
+    /**
+     * Increase the container version if the event data has changed outside
+     * the requests of the session since the last check. The timelines don't
+     * listen to the shared container, so a change made in one session never
+     * touches the timelines of the other sessions.
+     *
+     * @return True, if the event data had changed.
+     */
+    private boolean checkDataChanged() {
+        boolean changed = false;
+        if (changedOutside) {
+            changedOutside = false;
+            eventsChanged();
+            changed = true;
+        }
+        if (sharedData != null) {
+            long version = sharedData.getVersion();
+            if (version != sharedVersion) {
+                sharedVersion = version;
+                containerVersion++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Increase the container version for a change the container listener
+     * saw.
+     */
+    private void eventsChanged() {
+        contentSearch.eventsChanged(containerVersion);
+        containerVersion++;
+    }
+
+    /**
+     * Increases the container version when the event data source changes,
+     * or marks the events changed outside the requests of the session. The
+     * events are serialized again on the next paint.
+     */
+    private class EventContainerListener implements
+            Container.ItemSetChangeListener,
+            Container.PropertySetChangeListener,
+            Property.ValueChangeListener {
+
+        /**
+         * The container listened to, or null.
+         */
+        private Container container;
+
+        /**
+         * Listen to a container instead of the current one.
+         *
+         * @param container The container, or null to stop listening.
+         */
+        void listen(Container container) {
+            if (this.container != null) {
+                detach(this.container);
+            }
+            this.container = container;
+            if (container != null) {
+                attach(container);
+            }
         }
 
-        for (String key : variables.keySet()) {
-            if (key.startsWith(NEW_EVENT.v)) {
-                log.debug("Received new event.");
-                String[] eventFields = (String[]) variables.get(key);
-                TimelineEvent timelineEvent = createEventFromFields(eventFields);
-                fireEvent(new EventAddEvent(this, timelineEvent));
+        private void attach(Container container) {
+            if (container instanceof Container.ItemSetChangeNotifier) {
+                ((Container.ItemSetChangeNotifier) container).addListener(
+                        (Container.ItemSetChangeListener) this);
+            }
+            if (container instanceof Container.PropertySetChangeNotifier) {
+                ((Container.PropertySetChangeNotifier) container).addListener(
+                        (Container.PropertySetChangeListener) this);
+            }
+            if (container instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) container).addListener(
+                        (Property.ValueChangeListener) this);
             }
         }
 
-    }
+        private void detach(Container container) {
+            if (container instanceof Container.ItemSetChangeNotifier) {
+                ((Container.ItemSetChangeNotifier) container).removeListener(
+                        (Container.ItemSetChangeListener) this);
+            }
+            if (container instanceof Container.PropertySetChangeNotifier) {
+                ((Container.PropertySetChangeNotifier) container)
+                        .removeListener(
+                                (Container.PropertySetChangeListener) this);
+            }
+            if (container instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) container).removeListener(
+                        (Property.ValueChangeListener) this);
+            }
+        }
 
-    /**
-     * Create a TimelineEvent from eventFields received from the client side.
-     *
-     * @param eventFields A 3 or 4 cell String array containing the event
-     * fields.
-     * @return A new TimelineEvent.
-     */
-    private TimelineEvent createEventFromFields(String[] eventFields) {
-        TimelineEvent event = new TimelineEvent();
+        @Override
+        public void containerItemSetChange(Container.ItemSetChangeEvent event) {
+            contentSearch.itemSetChanged();
+            containerChanged();
+        }
 
-        event.setStart(new Date(Long.parseLong(eventFields[0])));
-        event.setEnd(new Date(Long.parseLong(eventFields[1])));
-        event.setContent(eventFields[2]);
-        if (eventFields.length == 4) {
-            event.setGroup(eventFields[3]);
+        @Override
+        public void containerPropertySetChange(
+                Container.PropertySetChangeEvent event) {
+            contentSearch.propertySetChanged();
+            containerChanged();
         }
 
-        return event;
-    }
+        @Override
+        public void valueChange(Property.ValueChangeEvent event) {
+            contentSearch.valueChanged(event.getProperty());
+            containerChanged();
+        }
 
-    @Override
-    public void requestRepaint() {
-        // Don't allow repaint until the javascript has loaded.
-        if (js_initialized) {
-            super.requestRepaint();
+        /**
+         * Repaint right away in a request of the session. Other threads only
+         * mark the events changed for {@link #refreshEventData()}.
+         */
+        private void containerChanged() {
+            Application application = getApplication();
+            if (application != null && Thread.holdsLock(application)) {
+                eventsChanged();
+                requestRepaint();
+            } else {
+                changedOutside = true;
+            }
         }
+
     }
 
     // <editor-fold desc="Listener methods">
@@ -648,15 +1698,272 @@ public class Timeline extends AbstractComponent {
      */
     public void setEventDataSource(Container.Indexed events)
             throws EventContainerInvalidException {
+        setEventData(events, null);
+    }
+
+    public SharedEventData getSharedEventData() {
+        return sharedData;
+    }
+
+    /**
+     * Show read-only event data shared with the timelines of other sessions.
+     * The events are encoded once per data version for all the timelines
+     * with the same event property ids, content and stacking settings, and
+     * event filter.
+     * <p>
+     * The timeline doesn't listen to the shared container, since the changes
+     * are made in the thread of one session. A change is picked up when the
+     * timeline is next painted.
+     *
+     * @param sharedData The shared event data.
+     * @throws
+     * fi.ninjaware.chaplinksvaadin.Timeline.EventContainerInvalidException when
+     * the container properties are invalid.
+     */
+    public void setSharedEventData(SharedEventData sharedData)
+            throws EventContainerInvalidException {
+        setEventData(sharedData == null ? null : sharedData.getContainer(),
+                sharedData);
+    }
+
+    private void setEventData(Container.Indexed events,
+            SharedEventData sharedData) throws EventContainerInvalidException {
+        cancelPreEncoding();
+        eventHandles.clear();
+        contentSearch.clear();
+
+        if (isFilterPushedDown() && containerFilter != null) {
+            ((Container.Filterable) this.events).removeContainerFilter(
+                    containerFilter);
+        }
+
+        this.sharedData = sharedData;
         this.events = events;
+        containerVersion++;
+        if (sharedData != null) {
+            sharedVersion = sharedData.getVersion();
+        }
+        if (getApplication() != null) {
+            containerListener.listen(sharedData == null ? events : null);
+        }
         if (this.events != null) {
             validateEventContainer();
-            generateSerializedEvents();
+            applyEventFilter();
+            serializeEvents();
         }
 
         requestRepaint();
     }
 
+    /**
+     * Set several event sources, each sorted by the event start. The sources
+     * are merged lazily while serializing, instead of copying the events
+     * into one container. The item ids of the merged events are pairs of the
+     * source index and the item id in the source.
+     * <p>
+     * Set the event property ids before the sources.
+     *
+     * @param sources The event sources.
+     * @throws
+     * fi.ninjaware.chaplinksvaadin.Timeline.EventContainerInvalidException when
+     * the container properties are invalid.
+     */
+    public void setEventDataSources(EventSource... sources)
+            throws EventContainerInvalidException {
+        setEventDataSource(new MergedEventContainer(Arrays.asList(sources),
+                eventStartPropertyId, eventGroupPropertyId,
+                eventClassNamePropertyId));
+    }
+
+    public TimelineFilter getEventFilter() {
+        return eventFilter;
+    }
+
+    /**
+     * Set the events shown. The filter is added to the event container, if
+     * it implements Container.Filterable, so containers backed by a database
+     * can filter in the query. Otherwise the events are filtered when
+     * serializing. Only the changes are sent to the client: the events
+     * filtered out are removed and the events filtered in are added.
+     * <p>
+     * Set the event property ids before the filter.
+     *
+     * @param eventFilter The filter, or null to show all events.
+     */
+    public void setEventFilter(TimelineFilter eventFilter) {
+
+        // Send only the changes, if the client is up to date. With windowed
+        // loading the client downloads the changed windows instead. Checked
+        // first, since the container notifies of the filter change.
+        checkDataChanged();
+        boolean incremental = events != null && js_initialized
+                && !windowedLoading && dataVersion == containerVersion
+                && !replaceEvents;
+
+        if (isFilterPushedDown() && containerFilter != null) {
+            ((Container.Filterable) events).removeContainerFilter(
+                    containerFilter);
+        }
+        this.eventFilter = eventFilter;
+        if (events == null) {
+            return;
+        }
+        applyEventFilter();
+        containerVersion++;
+        if (incremental) {
+            serializeChanges();
+        }
+        requestRepaint();
+    }
+
+    /**
+     * Create the container filter from the event filter, and add it to the
+     * event container if the container is filterable.
+     */
+    private void applyEventFilter() {
+        containerFilter = null;
+        if (eventFilter == null) {
+            return;
+        }
+
+        Collection<?> propIds = events.getContainerPropertyIds();
+        List<Container.Filter> filters = new ArrayList<Container.Filter>();
+        if (eventFilter.getGroups() != null
+                && propIds.contains(eventGroupPropertyId)) {
+            filters.add(anyOf(eventGroupPropertyId,
+                    eventFilter.getGroups()));
+        }
+        if (eventFilter.getClassNames() != null
+                && propIds.contains(eventClassNamePropertyId)) {
+            filters.add(anyOf(eventClassNamePropertyId,
+                    eventFilter.getClassNames()));
+        }
+        if (eventFilter.getTypes() != null
+                && propIds.contains(eventTypePropertyId)) {
+            filters.add(anyOf(eventTypePropertyId, eventFilter.getTypes()));
+        }
+        if (eventFilter.getContent() != null) {
+            filters.add(new ContentFilter(eventContentPropertyId,
+                    eventFilter.getContent()));
+        }
+
+        // The events overlapping the range: starting before the range end,
+        // and ending after the range start. Events without an end must start
+        // after the range start.
+        Date start = eventFilter.getStart();
+        Date end = eventFilter.getEnd();
+        if (end != null) {
+            filters.add(new Compare.LessOrEqual(eventStartPropertyId, end));
+        }
+        if (start != null) {
+            Container.Filter startsAfter = new Compare.GreaterOrEqual(
+                    eventStartPropertyId, start);
+            if (propIds.contains(eventEndPropertyId)) {
+                filters.add(new Or(
+                        new Compare.GreaterOrEqual(eventEndPropertyId, start),
+                        new And(new IsNull(eventEndPropertyId), startsAfter)));
+            } else {
+                filters.add(startsAfter);
+            }
+        }
+
+        if (filters.isEmpty()) {
+            return;
+        }
+        containerFilter = filters.size() == 1 ? filters.get(0)
+                : new And(filters.toArray(new Container.Filter[filters.size()]));
+        if (isFilterPushedDown()) {
+            ((Container.Filterable) events).addContainerFilter(
+                    containerFilter);
+        }
+    }
+
+    /**
+     * Check whether the event filter is added to the event container. Shared
+     * containers are never filtered, since the filter is per timeline.
+     *
+     * @return True, if the container does the filtering.
+     */
+    private boolean isFilterPushedDown() {
+        return events instanceof Container.Filterable && sharedData == null;
+    }
+
+    /**
+     * Get the event filter when it's applied by the timeline instead of the
+     * container.
+     *
+     * @return The filter, or null if the items needn't be filtered.
+     */
+    Container.Filter getLocalFilter() {
+        return isFilterPushedDown() ? null : containerFilter;
+    }
+
+    /**
+     * Get the event handles, which are shared when the event data is.
+     *
+     * @return The handles.
+     */
+    EventHandles handles() {
+        return sharedData != null ? sharedData.getHandles() : eventHandles;
+    }
+
+    /**
+     * Create a filter passing the items whose property has one of the given
+     * values.
+     */
+    private static Container.Filter anyOf(Object propertyId,
+            Collection<?> values) {
+        List<Container.Filter> filters = new ArrayList<Container.Filter>();
+        for (Object value : values) {
+            filters.add(new Compare.Equal(propertyId, value));
+        }
+        return new Or(filters.toArray(new Container.Filter[filters.size()]));
+    }
+
+    /**
+     * Passes the items whose content matches a content predicate.
+     */
+    private static class ContentFilter implements Container.Filter {
+
+        private final Object propertyId;
+
+        private final TimelineFilter.ContentPredicate predicate;
+
+        ContentFilter(Object propertyId,
+                TimelineFilter.ContentPredicate predicate) {
+            this.propertyId = propertyId;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean passesFilter(Object itemId, Item item) {
+            Property property = item.getItemProperty(propertyId);
+            return predicate.matches(property == null ? null
+                    : property.getValue());
+        }
+
+        @Override
+        public boolean appliesToProperty(Object propertyId) {
+            return this.propertyId.equals(propertyId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ContentFilter)) {
+                return false;
+            }
+            ContentFilter other = (ContentFilter) obj;
+            return propertyId.equals(other.propertyId)
+                    && predicate.equals(other.predicate);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * propertyId.hashCode() + predicate.hashCode();
+        }
+
+    }
+
     public Object getEventStartPropertyId() {
         return eventStartPropertyId;
     }
@@ -772,6 +2079,249 @@ public class Timeline extends AbstractComponent {
         requestRepaint();
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the maximum number of events sent to the client in one response.
+     * The events in the viewport are sent first, and the rest in chunks of
+     * this size as the client asks for them.
+     *
+     * @param chunkSize The chunk size. Zero or less sends all the events at
+     * once.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isWindowedLoading() {
+        return windowedLoading;
+    }
+
+    /**
+     * Set windowed loading on or off. With windowed loading, only the events
+     * in the time windows requested by the client are sent. The viewport
+     * should be set, so the client knows which windows to request first.
+     *
+     * @param windowedLoading True to use windowed loading.
+     */
+    public void setWindowedLoading(boolean windowedLoading) {
+        this.windowedLoading = windowedLoading;
+    }
+
+    public boolean isHttpDataChannel() {
+        return httpDataChannel;
+    }
+
+    /**
+     * Set the HTTP data channel on or off. With the channel, the client
+     * fetches the time windows used in windowed loading with plain HTTP
+     * requests. The URL of a window is derived from the contents, so
+     * browsers can serve the windows that haven't changed from their cache.
+     * With {@link SharedEventData} the windows can also be cached by proxies
+     * for all the sessions.
+     *
+     * @param httpDataChannel True to use the HTTP data channel.
+     */
+    public void setHttpDataChannel(boolean httpDataChannel) {
+        if (httpDataChannel != this.httpDataChannel
+                && getApplication() != null) {
+            if (httpDataChannel) {
+                windowResources.attach(getWindow());
+            } else {
+                windowResources.detach(getWindow());
+            }
+        }
+        this.httpDataChannel = httpDataChannel;
+        requestRepaint();
+    }
+
+    public boolean isGroupCollapsed(String group) {
+        return groups.isCollapsed(group);
+    }
+
+    /**
+     * Collapse or expand a group. The events of a collapsed group are
+     * replaced with summary events showing the number of events in each
+     * busy period. The summaries have the class name "timeline-summary".
+     * Expanding a group sends the events of the group in the viewport, and
+     * the rest when the client asks for more after drawing them. The client
+     * only removes and adds the items of the group.
+     *
+     * @param group The group.
+     * @param collapsed True to collapse the group, false to expand it.
+     */
+    public void setGroupCollapsed(String group, boolean collapsed) {
+        if (!groups.setCollapsed(group, collapsed)) {
+            return;
+        }
+        if (events == null || dataVersion != containerVersion) {
+            // The next paint serializes the events anyway.
+            return;
+        }
+
+        if (windowedLoading) {
+            // The windows change, so they get a new version. The client
+            // revalidates them and downloads only the changed ones.
+            containerVersion++;
+            dataVersion = containerVersion;
+            windows.build(encoded, allSerializedEvents, groups, true);
+            resendEvents();
+        } else if (!isVirtualizingGroups() || groups.isSent(group)) {
+            Set<String> changed = Collections.singleton(group);
+            dropQueuedEvents(changed);
+            groups.removeOnClient(changed);
+            if (collapsed) {
+                serializedEvents.addAll(groups.getSummaries(group));
+            } else {
+                queueExpandedGroup(group);
+            }
+        }
+        requestRepaint();
+    }
+
+    public int getSummaryRanges() {
+        return summaryRanges;
+    }
+
+    /**
+     * Set the maximum number of summary events shown for a collapsed group.
+     *
+     * @param summaryRanges The number of summaries.
+     * @throws IllegalArgumentException if the number is less than one.
+     */
+    public void setSummaryRanges(int summaryRanges) {
+        if (summaryRanges < 1) {
+            throw new IllegalArgumentException(
+                    "summaryRanges must be at least 1: " + summaryRanges);
+        }
+        this.summaryRanges = summaryRanges;
+    }
+
+    public boolean isGroupVirtualization() {
+        return groupVirtualization;
+    }
+
+    /**
+     * Set group virtualization on or off. With group virtualization, only
+     * the events of the groups scrolled into view, and a few groups below
+     * them, are sent. The client shows a scroll bar for the groups and asks
+     * for more as it is scrolled. The events without a group are always
+     * sent. Not used with windowed loading.
+     *
+     * @param groupVirtualization True to send only the groups in view.
+     */
+    public void setGroupVirtualization(boolean groupVirtualization) {
+        this.groupVirtualization = groupVirtualization;
+    }
+
+    public boolean isServerStacking() {
+        return serverStacking;
+    }
+
+    /**
+     * Set server side stacking on or off. With server side stacking, the
+     * overlapping events of each group are assigned to lanes on the server,
+     * and the client only places the events by their lanes. The lanes are
+     * computed from the event times, so events without an end don't push
+     * each other to other lanes even if their boxes overlap on the screen.
+     *
+     * @param serverStacking True to stack the events on the server side.
+     */
+    public void setServerStacking(boolean serverStacking) {
+        this.serverStacking = serverStacking;
+    }
+
+    public boolean isLazyContent() {
+        return lazyContent;
+    }
+
+    /**
+     * Set lazy content loading on or off. With lazy content, only a short
+     * plain text preview of the content is sent with the events, and none
+     * for dot events. The full content is sent when the user selects the
+     * event.
+     *
+     * @param lazyContent True to load the contents lazily.
+     */
+    public void setLazyContent(boolean lazyContent) {
+        this.lazyContent = lazyContent;
+    }
+
+    public int getContentPreviewLength() {
+        return contentPreviewLength;
+    }
+
+    /**
+     * Set the maximum length of the content previews used in lazy content
+     * loading.
+     *
+     * @param contentPreviewLength The length in characters.
+     */
+    public void setContentPreviewLength(int contentPreviewLength) {
+        this.contentPreviewLength = contentPreviewLength;
+    }
+
+    /**
+     * Register a content template. Events whose content property value is a
+     * {@link TemplateContent} are sent as the template id and the parameters,
+     * and the client side expands the template. The placeholders
+     * <code>{0}</code>, <code>{1}</code> and so on are replaced with the
+     * parameters as is, so they may contain HTML.
+     *
+     * @param templateId The template id.
+     * @param template The template HTML.
+     */
+    public void addContentTemplate(String templateId, String template) {
+        contentTemplates.put(templateId, template);
+        requestRepaint();
+    }
+
+    /**
+     * Remove a content template.
+     *
+     * @param templateId The template id.
+     */
+    public void removeContentTemplate(String templateId) {
+        contentTemplates.remove(templateId);
+        requestRepaint();
+    }
+
+    public String getDatasetId() {
+        return datasetId;
+    }
+
+    /**
+     * Set the id of the event data. With windowed loading, the client stores
+     * the windows of the past in the browser, and on the next page load shows
+     * the ones the server confirms unchanged without downloading them. Use
+     * the same id for the same data in every session, and different ids for
+     * different data.
+     *
+     * @param datasetId The dataset id, or null to not store windows.
+     */
+    public void setDatasetId(String datasetId) {
+        this.datasetId = datasetId;
+        requestRepaint();
+    }
+
+    public int getWindowCacheBudget() {
+        return windowCacheBudget;
+    }
+
+    /**
+     * Set the memory budget of the client side window cache used in windowed
+     * loading. The least recently used windows are evicted when the
+     * estimated memory use exceeds the budget.
+     *
+     * @param windowCacheBudget The budget in bytes.
+     */
+    public void setWindowCacheBudget(int windowCacheBudget) {
+        this.windowCacheBudget = windowCacheBudget;
+        requestRepaint();
+    }
+
     public boolean isEditable() {
         return editable;
     }
@@ -803,6 +2353,18 @@ public class Timeline extends AbstractComponent {
         return viewportEnd;
     }
 
+    /**
+     * Set the viewport start and end at once.
+     *
+     * @param start Viewport start.
+     * @param end Viewport end.
+     */
+    public void setVisibleChartRange(Date start, Date end) {
+        this.viewportStart = start;
+        this.viewportEnd = end;
+        requestRepaint();
+    }
+
     public void setViewportEnd(Date viewportEnd) {
         this.viewportEnd = viewportEnd;
         requestRepaint();
@@ -852,6 +2414,15 @@ public class Timeline extends AbstractComponent {
         this.showNavigation = showNavigation;
         requestRepaint();
     }
+
+    public boolean isRenderCulling() {
+        return renderCulling;
+    }
+
+    public void setRenderCulling(boolean renderCulling) {
+        this.renderCulling = renderCulling;
+        requestRepaint();
+    }
     
     // </editor-fold>
     // <editor-fold desc="Listener interfaces and events">
@@ -892,15 +2463,34 @@ public class Timeline extends AbstractComponent {
 
         private final TimelineEvent event;
 
+        private final int handle;
+
         public EventAddEvent(Component source, TimelineEvent addedEvent) {
+            this(source, addedEvent, -1);
+        }
+
+        public EventAddEvent(Component source, TimelineEvent addedEvent,
+                int handle) {
             super(source);
             event = addedEvent;
+            this.handle = handle;
         }
 
         public TimelineEvent getAddedEvent() {
             return event;
         }
 
+        /**
+         * Get the handle the client side gave the added event. It tells the
+         * events added on the client side apart until the application adds
+         * them to the event container.
+         *
+         * @return The handle, or -1 if not known.
+         */
+        public int getHandle() {
+            return handle;
+        }
+
     }
     // </editor-fold>
 }
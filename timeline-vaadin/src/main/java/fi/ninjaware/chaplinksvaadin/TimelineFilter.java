@@ -0,0 +1,141 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import fi.ninjaware.chaplinksvaadin.Timeline.EventType;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The events shown on Timeline. The criteria left unset don't restrict the
+ * events. Set with {@link Timeline#setEventFilter(TimelineFilter)}; changes
+ * made after that take effect when the filter is set again.
+ *
+ * @author miku
+ */
+public class TimelineFilter implements Serializable {
+
+    /**
+     * Decides which event contents are shown. Timelines showing the same
+     * {@link SharedEventData} share the encoded events only if their
+     * predicates are equal, so implement equals and hashCode when the
+     * predicate is created anew for the same criteria.
+     */
+    public static interface ContentPredicate extends Serializable {
+
+        /**
+         * Check whether an event with the content is shown.
+         *
+         * @param content The event content, or null.
+         * @return True, if the event is shown.
+         */
+        boolean matches(Object content);
+
+    }
+
+    /**
+     * Shown groups.
+     */
+    private Set<String> groups;
+
+    /**
+     * Shown CSS class names.
+     */
+    private Set<String> classNames;
+
+    /**
+     * Shown event types.
+     */
+    private Set<EventType> types;
+
+    /**
+     * Shown contents.
+     */
+    private ContentPredicate content;
+
+    /**
+     * Start of the time range the events must overlap.
+     */
+    private Date start;
+
+    /**
+     * End of the time range the events must overlap.
+     */
+    private Date end;
+
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Show only the events in the given groups.
+     *
+     * @param groups The groups, or null to show all groups.
+     */
+    public void setGroups(Collection<String> groups) {
+        this.groups = groups == null ? null : new HashSet<String>(groups);
+    }
+
+    public Set<String> getClassNames() {
+        return classNames;
+    }
+
+    /**
+     * Show only the events with the given CSS class names.
+     *
+     * @param classNames The class names, or null to show all events.
+     */
+    public void setClassNames(Collection<String> classNames) {
+        this.classNames = classNames == null ? null
+                : new HashSet<String>(classNames);
+    }
+
+    public Set<EventType> getTypes() {
+        return types;
+    }
+
+    /**
+     * Show only the events of the given types.
+     *
+     * @param types The types, or null to show all types.
+     */
+    public void setTypes(Collection<EventType> types) {
+        this.types = types == null ? null : new HashSet<EventType>(types);
+    }
+
+    public ContentPredicate getContent() {
+        return content;
+    }
+
+    /**
+     * Show only the events whose content matches the predicate. Unlike the
+     * other criteria, the predicate is Java code, so containers backed by a
+     * database evaluate it in memory.
+     *
+     * @param content The predicate, or null to show all contents.
+     */
+    public void setContent(ContentPredicate content) {
+        this.content = content;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    /**
+     * Show only the events overlapping a time range.
+     *
+     * @param start Range start, or null for no lower bound.
+     * @param end Range end, or null for no upper bound.
+     */
+    public void setTimeRange(Date start, Date end) {
+        this.start = start;
+        this.end = end;
+    }
+
+}
@@ -0,0 +1,261 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.TimeWindow;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The windowed loading of a timeline: the index of the events by time, and
+ * the time windows the client has requested. The windows are sent in the
+ * UIDL responses, or served by the {@link WindowResourceHandler} when using
+ * the HTTP data channel.
+ *
+ * @author miku
+ */
+class WindowLoader implements Serializable {
+
+    private static final Logger log
+            = LoggerFactory.getLogger(WindowLoader.class);
+
+    private final WindowResourceHandler windowResources;
+
+    /**
+     * The encoded events the windows are of.
+     */
+    private EncodedEvents encoded;
+
+    /**
+     * The serialized events sorted by start, when using windowed loading.
+     */
+    private SerializedEventIndex windowIndex;
+
+    /**
+     * The digest of the contents of all the windows, or null until needed.
+     */
+    private String windowDataTag;
+
+    /**
+     * The time windows requested by the client and not sent yet. Key =
+     * window key, Value = the tag of the window contents the client already
+     * has, or null.
+     */
+    private final Map<String, String> requestedWindows
+            = new LinkedHashMap<String, String>();
+
+    WindowLoader(WindowResourceHandler windowResources) {
+        this.windowResources = windowResources;
+    }
+
+    /**
+     * Index the events for windowed loading, with the events of the
+     * collapsed groups replaced by their summaries. Without windowed loading
+     * the index is dropped.
+     *
+     * @param encoded The encoded events.
+     * @param events All the events.
+     * @param groups The groups of the timeline.
+     * @param windowed True, if using windowed loading.
+     */
+    void build(EncodedEvents encoded, List<SerializedEvent> events,
+            EventGroups groups, boolean windowed) {
+        this.encoded = encoded;
+        windowDataTag = null;
+        if (!windowed) {
+            windowIndex = null;
+            return;
+        }
+        Set<String> collapsed = groups.getCollapsed();
+        if (collapsed.isEmpty()) {
+            windowIndex = encoded.getIndex();
+            return;
+        }
+
+        List<SerializedEvent> indexed = new ArrayList<SerializedEvent>();
+        for (SerializedEvent event : events) {
+            if (!collapsed.contains(event.group)) {
+                indexed.add(event);
+            }
+        }
+        for (String group : collapsed) {
+            indexed.addAll(groups.getSummaries(group));
+        }
+        windowIndex = new SerializedEventIndex(indexed);
+    }
+
+    /**
+     * The serialized events sorted by start, when using windowed loading.
+     *
+     * @return The index or null.
+     */
+    SerializedEventIndex getIndex() {
+        return windowIndex;
+    }
+
+    /**
+     * Queue the windows requested by the client. Each request is a window
+     * key, optionally followed by "=" and the tag of the contents the client
+     * already has.
+     *
+     * @param requests The requests.
+     */
+    void request(String[] requests) {
+        for (String request : requests) {
+            int separator = request.indexOf('=');
+            if (separator < 0) {
+                requestedWindows.put(request, null);
+            } else {
+                requestedWindows.put(request.substring(0, separator),
+                        request.substring(separator + 1));
+            }
+        }
+    }
+
+    /**
+     * Forget the requested windows, when all the events are sent again.
+     */
+    void clearRequests() {
+        requestedWindows.clear();
+    }
+
+    /**
+     * Take the events of the time windows requested by the client. The keys
+     * and tags of the windows are added to the paint target. Windows the
+     * client already has with the same contents are only marked unchanged.
+     *
+     * @param target The paint target.
+     * @return The events to send. Each event is sent once even if it overlaps
+     * several windows.
+     * @throws PaintException if the paint operation fails.
+     */
+    Collection<SerializedEvent> nextBatch(PaintTarget target)
+            throws PaintException {
+        Map<Integer, SerializedEvent> batch
+                = new LinkedHashMap<Integer, SerializedEvent>();
+        List<String> windowKeys = new ArrayList<String>();
+        List<String> windowTags = new ArrayList<String>();
+        List<String> unchangedKeys = new ArrayList<String>();
+
+        for (Map.Entry<String, String> request : requestedWindows.entrySet()) {
+            String key = request.getKey();
+            TimeWindow window;
+            try {
+                window = TimeWindow.parse(key);
+            } catch (IllegalArgumentException ex) {
+                log.warn(ex.getMessage());
+                continue;
+            }
+
+            List<SerializedEvent> windowEvents = windowIndex != null
+                    ? windowIndex.query(window.getStart(),
+                            window.getEnd() - 1)
+                    : new ArrayList<SerializedEvent>();
+            String tag = tagWindow(windowEvents);
+            if (tag.equals(request.getValue())) {
+                unchangedKeys.add(key);
+                continue;
+            }
+
+            for (SerializedEvent event : windowEvents) {
+                batch.put(event.handle, event);
+            }
+            windowKeys.add(key);
+            windowTags.add(tag);
+        }
+        requestedWindows.clear();
+
+        target.addAttribute(WINDOWS.v,
+                windowKeys.toArray(new String[windowKeys.size()]));
+        target.addAttribute(WINDOW_TAGS.v,
+                windowTags.toArray(new String[windowTags.size()]));
+        target.addAttribute(UNCHANGED_WINDOWS.v,
+                unchangedKeys.toArray(new String[unchangedKeys.size()]));
+        return batch.values();
+    }
+
+    /**
+     * Compute a tag identifying the contents of a time window.
+     *
+     * @param windowEvents The events of the window.
+     * @return The tag.
+     */
+    static String tagWindow(List<SerializedEvent> windowEvents) {
+        long hash = 17;
+        for (SerializedEvent event : windowEvents) {
+            hash = 31 * hash + event.json.hashCode();
+        }
+        return Long.toHexString(hash) + "-" + windowEvents.size();
+    }
+
+    /**
+     * The tag identifying the contents of all the windows, used in the URLs
+     * of the HTTP data channel. It is a digest of the fields, their defaults
+     * and the events, so the same contents get the same URLs in every
+     * session, and changed contents get new ones.
+     *
+     * @return The tag, or null when not using windowed loading.
+     */
+    String getDataTag() {
+        if (windowDataTag == null && windowIndex != null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+
+            // The tree maps order the defaults.
+            Map<String, Map<String, String>> sortedGroups
+                    = new TreeMap<String, Map<String, String>>();
+            for (Map.Entry<String, Map<String, String>> group
+                    : encoded.groupDefaults.entrySet()) {
+                sortedGroups.put(group.getKey(),
+                        new TreeMap<String, String>(group.getValue()));
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(encoded.fields.values()).append('\n')
+                    .append(new TreeMap<String, String>(
+                                    encoded.columnDefaults))
+                    .append('\n').append(sortedGroups).append('\n');
+            updateDigest(digest, sb);
+
+            for (SerializedEvent event : windowIndex.getEvents()) {
+                sb.setLength(0);
+                sb.append(event.json).append('\n');
+                if (event.icon != null) {
+                    sb.append(windowResources.toVaadinUri(event.icon));
+                }
+                if (event.iconAlignment != null) {
+                    sb.append(' ').append(event.iconAlignment.getBitMask());
+                }
+                sb.append('\n');
+                updateDigest(digest, sb);
+            }
+            windowDataTag = new BigInteger(1, digest.digest()).toString(36);
+        }
+        return windowDataTag;
+    }
+
+    private static void updateDigest(MessageDigest digest, CharSequence s) {
+        try {
+            digest.update(s.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+}
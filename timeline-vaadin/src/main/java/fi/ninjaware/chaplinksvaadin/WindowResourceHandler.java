@@ -0,0 +1,425 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.Application;
+import com.vaadin.service.ApplicationContext;
+import com.vaadin.terminal.ApplicationResource;
+import com.vaadin.terminal.DownloadStream;
+import com.vaadin.terminal.ExternalResource;
+import com.vaadin.terminal.Resource;
+import com.vaadin.terminal.ThemeResource;
+import com.vaadin.terminal.URIHandler;
+import com.vaadin.terminal.gwt.server.JsonPaintTarget;
+import com.vaadin.ui.Window;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.TimeWindow;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the time windows of a timeline over plain HTTP, outside the UIDL
+ * responses. A window is requested with a URI of the form
+ * "timeline-windows/data/key", where data is the digest of the contents of
+ * all the windows of the timeline. The URI of a window thus depends only on
+ * its contents, and the responses can be cached by browsers, and by proxies
+ * when the event data is shared by the sessions anyway. The timelines of a
+ * window share the URI space: each handler serves only its own data.
+ *
+ * <p>The response is a JSON object with the window key and tag, the event
+ * fields and their defaults, the events as JSON arrays and the icons of the
+ * events. The events are written one at a time without a content length, so
+ * the servlet container streams the response with chunked transfer.</p>
+ *
+ * <p>The client asks for a window it has cached for an older data version
+ * with the tag of the cached window in the If-None-Match header. A download
+ * stream can't carry the status code, so instead of 304 an unchanged window
+ * is answered with an empty response that isn't cached. The icons that are
+ * application resources are served by the handler too.</p>
+ *
+ * @author miku
+ */
+class WindowResourceHandler implements URIHandler,
+        ApplicationContext.TransactionListener {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(WindowResourceHandler.class);
+
+    /**
+     * The first path segment of the handled URIs.
+     */
+    private static final String NAME = "timeline-windows";
+
+    /**
+     * How long the windows of the current data version may be cached.
+     */
+    private static final long CACHE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The If-None-Match header of the request being handled.
+     */
+    private static final ThreadLocal<String> IF_NONE_MATCH
+            = new ThreadLocal<String>();
+
+    private final Timeline timeline;
+
+    /**
+     * Identifies the icons of this handler among the handlers of the
+     * window.
+     */
+    private final String id = UUID.randomUUID().toString();
+
+    /**
+     * The application resource icons served, by their number.
+     */
+    private final List<ApplicationResource> icons
+            = new ArrayList<ApplicationResource>();
+
+    /**
+     * The numbers of the served icons.
+     */
+    private final Map<ApplicationResource, Integer> iconNumbers
+            = new IdentityHashMap<ApplicationResource, Integer>();
+
+    WindowResourceHandler(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * The path of the windows of a data digest relative to the application
+     * window.
+     *
+     * @param data The digest of the window contents.
+     * @return The path ending with a slash.
+     */
+    static String getPath(String data) {
+        return NAME + "/" + data + "/";
+    }
+
+    /**
+     * Start serving the windows in the application of a window.
+     *
+     * @param window The window of the timeline.
+     */
+    void attach(Window window) {
+        window.addURIHandler(this);
+        ApplicationContext context = window.getApplication().getContext();
+        if (context != null) {
+            context.addTransactionListener(this);
+        }
+    }
+
+    /**
+     * Stop serving the windows.
+     *
+     * @param window The window of the timeline.
+     */
+    void detach(Window window) {
+        window.removeURIHandler(this);
+        ApplicationContext context = window.getApplication().getContext();
+        if (context != null) {
+            context.removeTransactionListener(this);
+        }
+    }
+
+    @Override
+    public void transactionStart(Application application,
+            Object transactionData) {
+        if (transactionData instanceof HttpServletRequest) {
+            IF_NONE_MATCH.set(((HttpServletRequest) transactionData)
+                    .getHeader("If-None-Match"));
+        }
+    }
+
+    @Override
+    public void transactionEnd(Application application,
+            Object transactionData) {
+        IF_NONE_MATCH.remove();
+    }
+
+    @Override
+    public DownloadStream handleURI(URL context, String relativeUri) {
+        String[] parts = relativeUri.split("/");
+        if (parts.length == 0 || !parts[0].equals(NAME)
+                || timeline.getApplication() == null) {
+            return null;
+        }
+        if (parts.length == 5 && parts[1].equals("icon")) {
+            return parts[2].equals(id) ? handleIcon(parts[3]) : null;
+        }
+        if (parts.length != 3) {
+            return null;
+        }
+
+        TimeWindow window;
+        try {
+            window = TimeWindow.parse(parts[2]);
+        } catch (IllegalArgumentException ex) {
+            log.warn("Invalid window URI: {}", relativeUri);
+            return null;
+        }
+
+        // The URI handlers aren't called with the application lock.
+        String data;
+        SerializedEventIndex index;
+        Collection<String> fields;
+        Map<String, String> columnDefaults;
+        Map<String, Map<String, String>> groupDefaults;
+        boolean shared;
+        synchronized (timeline.getApplication()) {
+            data = timeline.getWindowDataTag();
+            if (!parts[1].equals(data)) {
+                // Another timeline's data, or contents replaced since.
+                return null;
+            }
+            index = timeline.getWindowIndex();
+            fields = timeline.getSerializedFields();
+            columnDefaults = timeline.getColumnDefaults();
+            groupDefaults = timeline.getGroupDefaults();
+            shared = timeline.getSharedEventData() != null;
+        }
+
+        List<SerializedEvent> windowEvents = index != null
+                ? index.query(window.getStart(), window.getEnd() - 1)
+                : Collections.<SerializedEvent>emptyList();
+        String tag = WindowLoader.tagWindow(windowEvents);
+
+        if (matches(IF_NONE_MATCH.get(), tag)) {
+            DownloadStream stream = new DownloadStream(
+                    new ByteArrayInputStream(new byte[0]),
+                    "application/json; charset=UTF-8", null);
+            stream.setParameter("ETag", "\"" + tag + "\"");
+            stream.setCacheTime(0);
+            stream.setParameter("Cache-Control", "no-store");
+            return stream;
+        }
+
+        DownloadStream stream = new DownloadStream(
+                new SequenceInputStream(new Parts(window.getKey(), tag,
+                        fields, columnDefaults, groupDefaults, windowEvents)),
+                "application/json; charset=UTF-8", null);
+        stream.setParameter("ETag", "\"" + data + "-" + tag + "\"");
+        stream.setCacheTime(CACHE_MILLIS);
+        // Only the data shared by the sessions anyway may be cached by
+        // proxies.
+        stream.setParameter("Cache-Control", (shared ? "public" : "private")
+                + ", max-age=" + CACHE_MILLIS / 1000);
+        return stream;
+    }
+
+    /**
+     * Check whether an If-None-Match header names the tag of a window.
+     *
+     * @param header The header, or null.
+     * @param tag The window tag.
+     * @return True, if the client has the window already.
+     */
+    static boolean matches(String header, String tag) {
+        if (header == null) {
+            return false;
+        }
+        for (String etag : header.split(",")) {
+            etag = etag.trim();
+            if (etag.startsWith("W/")) {
+                etag = etag.substring(2);
+            }
+            if (etag.equals("\"" + tag + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serve an application resource icon.
+     *
+     * @param number The number of the icon.
+     * @return The icon, or null if there's no such icon.
+     */
+    private DownloadStream handleIcon(String number) {
+        ApplicationResource icon;
+        try {
+            icon = getIcon(Integer.parseInt(number));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        if (icon == null) {
+            return null;
+        }
+        synchronized (timeline.getApplication()) {
+            return icon.getStream();
+        }
+    }
+
+    private synchronized ApplicationResource getIcon(int number) {
+        return number >= 0 && number < icons.size() ? icons.get(number)
+                : null;
+    }
+
+    /**
+     * Convert a resource to the URI format used in UIDL, which the client
+     * side translates. The application resources are served by this
+     * handler.
+     *
+     * @param resource The resource.
+     * @return The URI, or null if the resource type isn't supported.
+     */
+    synchronized String toVaadinUri(Resource resource) {
+        if (resource instanceof ExternalResource) {
+            return ((ExternalResource) resource).getURL();
+        } else if (resource instanceof ThemeResource) {
+            return "theme://" + ((ThemeResource) resource).getResourceId();
+        } else if (resource instanceof ApplicationResource) {
+            ApplicationResource r = (ApplicationResource) resource;
+            Integer number = iconNumbers.get(r);
+            if (number == null) {
+                number = icons.size();
+                icons.add(r);
+                iconNumbers.put(r, number);
+            }
+            String name = r.getFilename();
+            try {
+                name = name != null && !name.isEmpty()
+                        ? URLEncoder.encode(name, "UTF-8") : "icon";
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+            return "app://" + NAME + "/icon/" + id + "/" + number + "/"
+                    + name;
+        }
+        return null;
+    }
+
+    /**
+     * The parts of the window JSON: a header, the events one at a time and
+     * the icons.
+     */
+    private class Parts implements Enumeration<InputStream> {
+
+        private final List<SerializedEvent> events;
+
+        private String header;
+
+        private int next = 0;
+
+        private boolean done = false;
+
+        Parts(String key, String tag, Collection<String> fields,
+                Map<String, String> columnDefaults,
+                Map<String, Map<String, String>> groupDefaults,
+                List<SerializedEvent> events) {
+            this.events = events;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"key\":\"").append(key)
+                    .append("\",\"tag\":\"").append(tag)
+                    .append("\",\"fields\":[");
+            int i = 0;
+            for (String field : fields) {
+                sb.append(i++ > 0 ? "," : "").append("\"").append(field)
+                        .append("\"");
+            }
+            sb.append("],\"columnDefaults\":");
+            appendObject(sb, columnDefaults);
+            sb.append(",\"groupDefaults\":{");
+            i = 0;
+            for (Map.Entry<String, Map<String, String>> group
+                    : groupDefaults.entrySet()) {
+                sb.append(i++ > 0 ? "," : "").append("\"")
+                        .append(JsonPaintTarget.escapeJSON(group.getKey()))
+                        .append("\":");
+                appendObject(sb, group.getValue());
+            }
+            sb.append("},\"events\":[");
+            header = sb.toString();
+        }
+
+        /**
+         * Append a map of strings as a JSON object.
+         */
+        private void appendObject(StringBuilder sb,
+                Map<String, String> map) {
+            sb.append("{");
+            int i = 0;
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                sb.append(i++ > 0 ? "," : "").append("\"")
+                        .append(JsonPaintTarget.escapeJSON(entry.getKey()))
+                        .append("\":\"")
+                        .append(JsonPaintTarget.escapeJSON(entry.getValue()))
+                        .append("\"");
+            }
+            sb.append("}");
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return !done;
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (done) {
+                throw new NoSuchElementException();
+            }
+
+            String part;
+            if (header != null) {
+                part = header;
+                header = null;
+            } else if (next < events.size()) {
+                part = (next > 0 ? "," : "") + events.get(next++).json;
+            } else {
+                part = "]," + icons() + "}";
+                done = true;
+            }
+
+            try {
+                return new ByteArrayInputStream(part.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        /**
+         * The icons and icon alignments of the events, keyed by handle.
+         *
+         * @return The JSON members.
+         */
+        private String icons() {
+            StringBuilder uris = new StringBuilder();
+            StringBuilder alignments = new StringBuilder();
+            for (SerializedEvent event : events) {
+                String uri = event.icon != null ? toVaadinUri(event.icon)
+                        : null;
+                if (uri != null) {
+                    uris.append(uris.length() > 0 ? "," : "")
+                            .append("\"").append(event.handle).append("\":\"")
+                            .append(JsonPaintTarget.escapeJSON(uri))
+                            .append("\"");
+                }
+                if (event.iconAlignment != null) {
+                    alignments.append(alignments.length() > 0 ? "," : "")
+                            .append("\"").append(event.handle).append("\":")
+                            .append(event.iconAlignment.getBitMask());
+                }
+            }
+            return "\"icons\":{" + uris + "},\"iconAlignments\":{"
+                    + alignments + "}";
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+package fi.ninjaware.chaplinksvaadin.gwt.client;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.core.client.ScriptInjector;
+import com.google.gwt.visualization.client.VisualizationUtils;
+import com.vaadin.terminal.gwt.client.ApplicationConnection;
+import com.vaadin.terminal.gwt.client.VConsole;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A shared loader for the Google Visualization API and the scripts of the
+ * widgets. They are loaded only once per widgetset, no matter how many
+ * widgets need them, and only when the first widget needs them, so the
+ * scripts aren't downloaded with the widgetset. Widgets created while
+ * loading are queued and notified in one go when the loading finishes.
+ *
+ * @author miku
+ */
+public final class VisualizationLoader {
+
+    /**
+     * The loading states of the API.
+     */
+    private enum State {
+
+        NOT_LOADED,
+        LOADING,
+        LOADED
+
+    }
+
+    /**
+     * The current loading state.
+     */
+    private static State state = State.NOT_LOADED;
+
+    /**
+     * The number of parts, the API and the scripts, still loading.
+     */
+    private static int loadingParts;
+
+    /**
+     * Callbacks waiting for the API to load.
+     */
+    private static final List<Runnable> pending = new ArrayList<Runnable>();
+
+    /**
+     * Server connections with queued variable changes waiting to be flushed.
+     */
+    private static final Set<ApplicationConnection> unflushed
+            = new LinkedHashSet<ApplicationConnection>();
+
+    private VisualizationLoader() {
+    }
+
+    /**
+     * Check whether the API has been loaded.
+     *
+     * @return True, if the API is loaded and ready to be used.
+     */
+    public static boolean isLoaded() {
+        return state == State.LOADED;
+    }
+
+    /**
+     * Make sure the API and the scripts are loaded and run
+     * <code>callback</code> after that. If they are already loaded, the
+     * callback is run immediately. A callback that is already waiting is not
+     * queued again.
+     *
+     * @param callback The callback to run when the API has been loaded.
+     * @param scripts The scripts to inject in order, relative to the module
+     * base URL.
+     * @param packages The visualization packages to load.
+     */
+    public static void ensureLoaded(Runnable callback, String[] scripts,
+            String... packages) {
+        if (state == State.LOADED) {
+            callback.run();
+            return;
+        }
+
+        if (!pending.contains(callback)) {
+            pending.add(callback);
+        }
+
+        if (state == State.NOT_LOADED) {
+            state = State.LOADING;
+            loadingParts = 2;
+            injectScripts(scripts, 0);
+            VisualizationUtils.loadVisualizationApi(new Runnable() {
+
+                @Override
+                public void run() {
+                    VConsole.log("Google Visualization JavaScript loaded");
+                    partLoaded();
+                }
+
+            }, packages);
+        }
+    }
+
+    /**
+     * Inject the scripts one at a time, since a script may use the ones
+     * before it. A failed script is logged and skipped.
+     *
+     * @param scripts The scripts.
+     * @param index The index of the next script.
+     */
+    private static void injectScripts(final String[] scripts,
+            final int index) {
+        if (index == scripts.length) {
+            partLoaded();
+            return;
+        }
+
+        final String url = GWT.getModuleBaseURL() + scripts[index];
+        ScriptInjector.fromUrl(url).setWindow(ScriptInjector.TOP_WINDOW)
+                .setCallback(new Callback<Void, Exception>() {
+
+                    @Override
+                    public void onSuccess(Void result) {
+                        VConsole.log("Injected " + url);
+                        injectScripts(scripts, index + 1);
+                    }
+
+                    @Override
+                    public void onFailure(Exception reason) {
+                        VConsole.error("Failed to inject " + url + ": "
+                                + reason.getMessage());
+                        injectScripts(scripts, index + 1);
+                    }
+
+                }).inject();
+    }
+
+    /**
+     * Run the waiting callbacks, when the last part has loaded.
+     */
+    private static void partLoaded() {
+        if (--loadingParts > 0) {
+            return;
+        }
+        state = State.LOADED;
+
+        List<Runnable> callbacks = new ArrayList<Runnable>(pending);
+        pending.clear();
+        for (Runnable r : callbacks) {
+            r.run();
+        }
+    }
+
+    /**
+     * Queue a variable change telling the server side component that the API
+     * has been loaded. The changes of all widgets are sent to the server in a
+     * single request.
+     *
+     * @param client The server connection.
+     * @param paintableId The paintable id of the widget.
+     * @param variableName The name of the variable to update.
+     */
+    public static void notifyInitialized(ApplicationConnection client,
+            String paintableId, String variableName) {
+        client.updateVariable(paintableId, variableName, true, false);
+
+        if (unflushed.isEmpty()) {
+            Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+
+                @Override
+                public void execute() {
+                    List<ApplicationConnection> clients
+                            = new ArrayList<ApplicationConnection>(unflushed);
+                    unflushed.clear();
+                    for (ApplicationConnection c : clients) {
+                        c.sendPendingVariableChanges();
+                    }
+                }
+
+            });
+        }
+        unflushed.add(client);
+    }
+
+}
@@ -2,22 +2,42 @@ package fi.ninjaware.chaplinksvaadin.gwt.client.timeline;
 
 import com.chap.links.client.Timeline;
 import com.chap.links.client.events.AddHandler;
+import com.chap.links.client.events.RangeChangeHandler;
+import com.chap.links.client.events.SelectHandler;
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayInteger;
+import com.google.gwt.core.client.JsArrayString;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.dom.client.Element;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
 import com.vaadin.terminal.gwt.client.ApplicationConnection;
 import com.vaadin.terminal.gwt.client.Paintable;
 import com.vaadin.terminal.gwt.client.UIDL;
 import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONValue;
 import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.visualization.client.AbstractDataTable.ColumnType;
-import com.google.gwt.visualization.client.DataTable;
-import com.google.gwt.visualization.client.VisualizationUtils;
+import com.google.gwt.visualization.client.Selection;
+import fi.ninjaware.chaplinksvaadin.gwt.client.VisualizationLoader;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.TimeWindow;
 import com.vaadin.terminal.gwt.client.VConsole;
 import com.vaadin.terminal.gwt.client.ui.AlignmentInfo;
 import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.*;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -41,7 +61,8 @@ public class VTimeline extends Timeline implements Paintable {
         GROUP("group", ColumnType.STRING),
         CLASSNAME("className", ColumnType.STRING),
         EDITABLE("editable", ColumnType.BOOLEAN),
-        TYPE("type", ColumnType.STRING);
+        TYPE("type", ColumnType.STRING),
+        LANE("lane", ColumnType.NUMBER);
 
         EventFields(String jsId, ColumnType type) {
             this.jsId = jsId;
@@ -60,6 +81,28 @@ public class VTimeline extends Timeline implements Paintable {
     private static final AlignmentInfo defaultIconAlignment
             = new AlignmentInfo(AlignmentInfo.CENTER, AlignmentInfo.TOP);
 
+    /**
+     * The time in milliseconds spent decoding events before yielding to the
+     * browser.
+     */
+    private static final int DECODE_SLICE_MILLIS = 30;
+
+    /**
+     * With render culling, the items within this fraction of the visible
+     * range on both sides of it are rendered, too.
+     */
+    private static final double CULLING_BUFFER = 0.5;
+
+    /**
+     * The maximum number of windows prefetched in the panning direction.
+     */
+    private static final int MAX_PREFETCH_WINDOWS = 3;
+
+    /**
+     * How far ahead in milliseconds of panning the windows are prefetched.
+     */
+    private static final double PREFETCH_LOOKAHEAD_MILLIS = 1000;
+
     /**
      * The client side widget identifier
      */
@@ -80,6 +123,70 @@ public class VTimeline extends Timeline implements Paintable {
      */
     private TimelineAddHandler addHandler;
 
+    /**
+     * A handler that requests the full content of selected events, when the
+     * contents are loaded lazily.
+     */
+    private TimelineSelectHandler selectHandler;
+
+    /**
+     * The default values of the fields left out of the events. Key = field
+     * name.
+     */
+    private final Map<String, String> columnDefaults
+            = new HashMap<String, String>();
+
+    /**
+     * The default values in the groups differing from the column defaults.
+     * Key = group, Value = defaults keyed by field name.
+     */
+    private final Map<String, Map<String, String>> groupDefaults
+            = new HashMap<String, Map<String, String>>();
+
+    /**
+     * The row height used before the timeline has rendered any groups.
+     */
+    private static final int DEFAULT_GROUP_ROW_HEIGHT = 30;
+
+    /**
+     * The scripts of the CHAP Links Timeline, injected when the first
+     * timeline is shown instead of with the widgetset.
+     */
+    private static final String[] SCRIPTS = {"timeline.js",
+        "timeline-locales.js"};
+
+    /**
+     * The scroll bar for the groups when using group virtualization, or null.
+     */
+    private Element groupScrollbar;
+
+    /**
+     * Gives the group scroll bar the height of all the groups.
+     */
+    private Element groupSpacer;
+
+    /**
+     * The number of groups on the server side.
+     */
+    private int groupTotal;
+
+    /**
+     * The index of the first group in view.
+     */
+    private int firstGroup;
+
+    /**
+     * The number of groups that fit in view.
+     */
+    private int visibleGroups;
+
+    private boolean groupScrollScheduled;
+
+    /**
+     * The content templates used by the events.
+     */
+    private final VTimelineTemplates templates = new VTimelineTemplates();
+
     /**
      * The timeline options. Options contain most of the timeline settings.
      */
@@ -88,7 +195,119 @@ public class VTimeline extends Timeline implements Paintable {
     /**
      * Current timeline data.
      */
-    private DataTable data;
+    private JsArray<VTimelineEvent> data;
+
+    /**
+     * True, when only the items near the visible range are given to the
+     * timeline. The rest are kept in <code>eventIndex</code>.
+     */
+    private boolean renderCulling;
+
+    /**
+     * All the decoded events, when render culling is on.
+     */
+    private VTimelineEventIndex eventIndex;
+
+    /**
+     * True, when the events are loaded in time windows requested from the
+     * server.
+     */
+    private boolean windowed;
+
+    /**
+     * The windows received from the server in windowed loading.
+     */
+    private final VTimelineWindowCache windowCache
+            = new VTimelineWindowCache(0);
+
+    /**
+     * The version of the data on the server side. Cached windows of other
+     * versions are revalidated before they are shown.
+     */
+    private long dataVersion;
+
+    /**
+     * The version of the events drawn on the timeline, or -1 if none have
+     * been received.
+     */
+    private long heldVersion = -1;
+
+    /**
+     * The server version the held version was last reported for. Avoids
+     * reporting the same mismatch twice.
+     */
+    private long reportedVersion = -1;
+
+    /**
+     * Keeps the past windows over page reloads.
+     */
+    private final VTimelineWindowStore windowStore
+            = new VTimelineWindowStore();
+
+    /**
+     * The URL the windows are fetched from, or null to request them through
+     * UIDL.
+     */
+    private String dataUrl;
+
+    /**
+     * Keys of the windows requested from the server and not received yet.
+     */
+    private final Set<String> requestedWindows = new HashSet<String>();
+
+    /**
+     * The center of the visible range on the previous range change. Used to
+     * track the panning velocity.
+     */
+    private double lastCenter;
+
+    /**
+     * The time of the previous range change in milliseconds.
+     */
+    private double lastRangeChange;
+
+    /**
+     * The window size on the previous range change.
+     */
+    private long lastWindowSize;
+
+    /**
+     * A handler that updates the rendered items when the visible range
+     * changes.
+     */
+    private RangeChangeHandler rangeChangeHandler;
+
+    /**
+     * Decodes the events of the latest update. Null, when there is no
+     * decoding in progress.
+     */
+    private IncrementalDecoder decoder;
+
+    /**
+     * The latest UIDL received before the visualization API was loaded.
+     */
+    private UIDL pendingUidl;
+
+    /**
+     * Replays the pending UIDL once the visualization API has been loaded.
+     */
+    private final Runnable pendingUidlHandler = new Runnable() {
+
+        @Override
+        public void run() {
+            UIDL uidl = pendingUidl;
+            pendingUidl = null;
+            if (uidl != null) {
+                updateFromUIDL(uidl, client);
+            }
+        }
+
+    };
+
+    /**
+     * True, when the server side has been told that the JavaScript is loaded.
+     */
+    private boolean initializedSent;
 
     /**
      * The constructor should first call super() to initialize the component and
@@ -100,17 +319,6 @@ public class VTimeline extends Timeline implements Paintable {
         // style name in DOM tree
         setStyleName(CLASSNAME);
 
-        VisualizationUtils.loadVisualizationApi(new Runnable() {
-
-            @Override
-            public void run() {
-                VConsole.log("Google Visualization JavaScript loaded");
-                client.updateVariable(paintableId, JS_INITIALIZED.v, 
-                        true, true);
-            }
-
-        }, Timeline.PACKAGE);
-
         options = getDefaultOptions();
     }
 
@@ -141,6 +349,16 @@ public class VTimeline extends Timeline implements Paintable {
      */
     @Override
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+        // The visualization API is shared by all the timelines. Hold on to
+        // the latest update until it has been loaded.
+        if (!VisualizationLoader.isLoaded()) {
+            this.client = client;
+            pendingUidl = uidl;
+            VisualizationLoader.ensureLoaded(pendingUidlHandler, SCRIPTS,
+                    Timeline.PACKAGE);
+            return;
+        }
+
         // This call should be made first. 
         // It handles sizes, captions, tooltips, etc. automatically.
         if (client.updateComponent(this, uidl, true)) {
@@ -156,6 +374,14 @@ public class VTimeline extends Timeline implements Paintable {
         // Save the client side identifier (paintable id) for the widget
         paintableId = uidl.getId();
 
+        // The server side skips the handshake when it already knows that the
+        // widgetset has the JavaScript loaded.
+        if (!initializedSent && !uidl.getBooleanAttribute(JS_INITIALIZED.v)) {
+            VisualizationLoader.notifyInitialized(client, paintableId,
+                    JS_INITIALIZED.v);
+            initializedSent = true;
+        }
+
         String width = uidl.getStringAttribute(WIDTH.v);
         String width_units = uidl.getStringAttribute(WIDTH_UNITS.v);
         setWidth(width + width_units);
@@ -201,6 +427,31 @@ public class VTimeline extends Timeline implements Paintable {
         // Handlers cannot be removed, so we have to enable/disable it.
         addHandler.setEnabled(uidl.getBooleanAttribute(HAS_ADDLISTENERS.v));
 
+        if (selectHandler == null) {
+            addSelectHandler(selectHandler = new TimelineSelectHandler());
+        }
+        selectHandler.setEnabled(uidl.getBooleanAttribute(LAZY_CONTENT.v));
+
+        setLaneStackingNative(getJso(),
+                uidl.getBooleanAttribute(SERVER_STACKING.v));
+
+        renderCulling = uidl.getBooleanAttribute(RENDER_CULLING.v);
+        windowed = uidl.getBooleanAttribute(WINDOWED.v);
+        if ((renderCulling || windowed) && rangeChangeHandler == null) {
+            addRangeChangeHandler(rangeChangeHandler
+                    = new RangeChangeHandler() {
+
+                        @Override
+                        public void onRangeChange(RangeChangeEvent event) {
+                            updateVisibleItems();
+                            if (windowed) {
+                                requestWindows();
+                            }
+                        }
+
+                    });
+        }
+
         // Icons and icon positions
         Set<String> attributeNames = uidl.getAttributeNames();
         Map<String, String> icons = new HashMap<String, String>();
@@ -221,122 +472,886 @@ public class VTimeline extends Timeline implements Paintable {
             }
         }
 
+        templates.setTemplates(uidl.getStringArrayAttribute(
+                CONTENT_TEMPLATES.v));
+
+        columnDefaults.clear();
+        String[] defaults = uidl.getStringArrayAttribute(COLUMN_DEFAULTS.v);
+        for (int i = 0; i + 1 < defaults.length; i += 2) {
+            columnDefaults.put(defaults[i], defaults[i + 1]);
+        }
+        groupDefaults.clear();
+        defaults = uidl.getStringArrayAttribute(GROUP_DEFAULTS.v);
+        for (int i = 0; i + 2 < defaults.length; i += 3) {
+            Map<String, String> inGroup = groupDefaults.get(defaults[i]);
+            if (inGroup == null) {
+                inGroup = new HashMap<String, String>();
+                groupDefaults.put(defaults[i], inGroup);
+            }
+            inGroup.put(defaults[i + 1], defaults[i + 2]);
+        }
+
+        // Groups
+        String[] removedGroups = uidl.getStringArrayAttribute(
+                REMOVED_GROUPS.v);
+        if (removedGroups.length > 0) {
+            JsArrayString groups = JavaScriptObject.createArray().cast();
+            for (String group : removedGroups) {
+                groups.push(group);
+            }
+            removeGroupsNative(getJso(), groups);
+            if (eventIndex != null) {
+                eventIndex.removeGroups(groups);
+            }
+        }
+        if (uidl.getBooleanAttribute(GROUP_VIRTUALIZATION.v)) {
+            groupTotal = uidl.getIntAttribute(GROUP_TOTAL.v);
+            updateGroupScrollbar(uidl.getIntAttribute(FIRST_GROUP.v));
+        } else if (groupScrollbar != null) {
+            groupScrollbar.removeFromParent();
+            groupScrollbar = null;
+        }
+
         // Events
         String[] events = uidl.getStringArrayVariable(EVENTS.v);
-        if (events.length > 0) {
+        boolean append = uidl.getBooleanAttribute(APPEND_EVENTS.v);
+        boolean moreEvents = uidl.getBooleanAttribute(MORE_EVENTS.v);
+        WindowResponse windows = null;
+        dataVersion = uidl.getLongAttribute(DATA_VERSION.v);
+        if (!append) {
+            heldVersion = dataVersion;
+        } else if (uidl.hasAttribute(BASE_VERSION.v)
+                && heldVersion == uidl.getLongAttribute(BASE_VERSION.v)) {
+            // Only the changes to the events we have.
+            heldVersion = dataVersion;
+            removeEvents(uidl.getIntArrayAttribute(REMOVED_EVENTS.v));
+        } else if (heldVersion != dataVersion && dataVersion > 0
+                && reportedVersion != dataVersion) {
+            // The server thinks we already have the events, e.g. after a page
+            // reload. Tell which version we have so it can send them again.
+            reportedVersion = dataVersion;
+            client.updateVariable(paintableId, DATA_VERSION.v, heldVersion,
+                    true);
+        }
+        dataUrl = uidl.hasAttribute(DATA_URL.v)
+                ? uidl.getStringAttribute(DATA_URL.v) : null;
+        if (windowed) {
+            windowCache.setBudget(uidl.getIntAttribute(WINDOW_CACHE_BUDGET.v));
+            windowStore.setDatasetId(uidl.hasAttribute(DATASET_ID.v)
+                    ? uidl.getStringAttribute(DATASET_ID.v) : null);
+            if (uidl.hasAttribute(WINDOWS.v)) {
+                windows = new WindowResponse(
+                        uidl.getStringArrayAttribute(WINDOWS.v),
+                        uidl.getStringArrayAttribute(WINDOW_TAGS.v),
+                        dataVersion);
+                revalidateWindows(
+                        uidl.getStringArrayAttribute(UNCHANGED_WINDOWS.v));
+            }
+        }
+
+        if (windowed && !append) {
+            // New data. Keep the cached windows, but revalidate them before
+            // showing, and ask for the windows in view.
+            requestedWindows.clear();
+            data = JavaScriptObject.createArray().cast();
+            draw(data, options);
+            requestWindows();
+        } else if (events.length > 0) {
+            if (decoder != null) {
+                decoder.cancel();
+            }
             String[] fields = uidl.getStringArrayAttribute(FIELDS.v);
-            data = generateData(fields, events, icons, iconAlignments);
+            decoder = new IncrementalDecoder(fields, events, icons,
+                    iconAlignments, append && data != null, moreEvents,
+                    windows);
+            Scheduler.get().scheduleIncremental(decoder);
+        } else if (windows != null) {
+            // Windows without events, or only unchanged windows.
+            JsArray<VTimelineEvent> none = JavaScriptObject.createArray()
+                    .cast();
+            cacheWindows(windows, none);
+        } else {
+            draw(data, options);
+            if (moreEvents) {
+                requestNextChunk();
+            }
+        }
+
+        String[] contents = uidl.getStringArrayAttribute(CONTENTS.v);
+        for (int i = 0; i + 1 < contents.length; i += 2) {
+            setFullContent(Integer.parseInt(contents[i]), contents[i + 1],
+                    icons, iconAlignments);
         }
-        
-        draw(data, options);
     }
 
     /**
-     * Generate the timeline data from the UIDL data.
+     * Replace the content preview of an event with its full content.
      *
-     * @param fields The fields used in <code>events</code>.
-     * @param events The timeline events.
-     * @param icons A map of icon id's and icon UIDL URIs.
-     * @param iconAlignments A map of icon id's and icon alignments.
-     * @return A DataTable of events.
+     * @param handle The event handle.
+     * @param content The full content.
+     * @param icons A map of event handles and icon UIDL URIs.
+     * @param iconAlignments A map of event handles and icon alignments.
      */
-    private DataTable generateData(String[] fields, String[] events,
+    private void setFullContent(int handle, String content,
             Map<String, String> icons,
             Map<String, AlignmentInfo> iconAlignments) {
-        DataTable dt = DataTable.create();
-
-        int contentCol = -1;
-        for (String field : fields) {
-            EventFields eventField = EventFields.valueOf(field);
-            int col = dt.addColumn(eventField.type, eventField.jsId);
-            if (eventField.equals(EventFields.CONTENT)) {
-                contentCol = col;
-            }
+        String id = String.valueOf(handle);
+        if (icons.containsKey(id)) {
+            AlignmentInfo iconAlign = iconAlignments.containsKey(id)
+                    ? iconAlignments.get(id)
+                    : defaultIconAlignment;
+            content = addIcon(content, client.translateVaadinUri(
+                    icons.get(id)), iconAlign);
         }
+        setFullContentNative(getJso(), handle, content);
+    }
+
+    /**
+     * Change the content of the item with the given handle. The event object
+     * is updated, too, so the content survives culling and caching.
+     */
+    private native void setFullContentNative(JavaScriptObject jso, int handle,
+            String content) /*-{
+     var data = jso.data || [];
+     for (var i = 0; i < data.length; i++) {
+     if (data[i].handle === handle) {
+     data[i].contentLoaded = true;
+     jso.changeItem(i, {content: content});
+     return;
+     }
+     }
+     }-*/;
 
-        dt.addRows(events.length);
+    /**
+     * Place the items by the lanes computed on the server side instead of
+     * checking them for overlap. The lane is copied from the event to the
+     * item when the item is created, and each lane is as high as the highest
+     * item in the group.
+     */
+    private native void setLaneStackingNative(JavaScriptObject jso,
+            boolean enabled) /*-{
+     if (!enabled) {
+     delete jso.createItem;
+     delete jso.finalItemsPosition;
+     return;
+     }
+     if (jso.finalItemsPosition !== $wnd.links.Timeline.prototype
+     .finalItemsPosition) {
+     return;
+     }
 
-        // Iterate the events
-        for (int i = 0; i < events.length; i++) {
-            JSONArray event = JSONParser.parseStrict(events[i]).isArray();
+     jso.createItem = function(itemData) {
+     var item = $wnd.links.Timeline.prototype.createItem.call(this, itemData);
+     item.lane = itemData.lane || 0;
+     return item;
+     };
 
-            int dtCol = 0;
+     jso.finalItemsPosition = function(items, groupBase, group) {
+     var axisOnTop = this.options.axisOnTop;
+     var eventMargin = this.options.eventMargin;
+     var finalItems = this.initialItemsPosition(items, groupBase);
 
-            String id = event.get(0).isString().stringValue();
+     var laneHeight = 0;
+     for (var i = 0; i < finalItems.length; i++) {
+     laneHeight = Math.max(laneHeight, finalItems[i].height);
+     }
 
-            // Iterate the event fields. Ignore the first field (=id).
-            for (int j = 1; j < event.size(); j++) {
-                ColumnType type = dt.getColumnType(dtCol);
+     var itemsHeight = 0;
+     for (var i = 0; i < finalItems.length; i++) {
+     var finalItem = finalItems[i];
+     var offset = (finalItem.item.lane || 0) * (laneHeight + eventMargin);
+     if (axisOnTop) {
+     finalItem.top += offset;
+     itemsHeight = Math.max(itemsHeight, finalItem.top + finalItem.height
+     - groupBase);
+     } else {
+     finalItem.top -= offset;
+     itemsHeight = Math.max(itemsHeight, groupBase - finalItem.top);
+     }
+     finalItem.bottom = finalItem.top + finalItem.height;
+     }
+     if (group) {
+     group.itemsHeight = Math.max(itemsHeight, laneHeight + eventMargin);
+     }
+     return finalItems;
+     };
+     }-*/;
 
-                String value = event.get(j).isString().stringValue();
-                if (!value.isEmpty()) {
-                    if (type.equals(ColumnType.DATE)) {
-                        dt.setValue(i, dtCol, new Date(Long.parseLong(value)));
-                    } else if (type.equals(ColumnType.BOOLEAN)) {
-                        dt.setValue(i, dtCol, Boolean.parseBoolean(value));
-                    } else {
-                        dt.setValue(i, dtCol, value);
-                    }
+    /**
+     * Create the group scroll bar if needed and update its size. The scroll
+     * position is restored from the server side, e.g. after a page reload.
+     *
+     * @param serverFirstGroup The first group in view on the server side.
+     */
+    private void updateGroupScrollbar(int serverFirstGroup) {
+        if (groupScrollbar == null) {
+            getElement().getStyle().setProperty("position", "relative");
+            groupScrollbar = DOM.createDiv();
+            groupScrollbar.setClassName("v-timeline-group-scrollbar");
+            groupScrollbar.getStyle().setProperty("position", "absolute");
+            groupScrollbar.getStyle().setProperty("top", "0");
+            groupScrollbar.getStyle().setProperty("right", "0");
+            groupScrollbar.getStyle().setProperty("bottom", "0");
+            groupScrollbar.getStyle().setProperty("width", "17px");
+            groupScrollbar.getStyle().setProperty("overflowY", "scroll");
+            groupScrollbar.getStyle().setProperty("zIndex", "10");
+            groupSpacer = DOM.createDiv();
+            groupSpacer.getStyle().setProperty("width", "1px");
+            groupScrollbar.appendChild(groupSpacer);
+            getElement().appendChild(groupScrollbar);
+            setScrollHandlerNative(groupScrollbar);
+            firstGroup = -1;
+        }
+
+        int rowHeight = getGroupRowHeight();
+        groupSpacer.getStyle().setProperty("height",
+                (groupTotal * rowHeight) + "px");
+        if (firstGroup < 0) {
+            firstGroup = serverFirstGroup;
+            groupScrollbar.setScrollTop(serverFirstGroup * rowHeight);
+        }
+
+        int fitting = Math.max(1, getOffsetHeight() / rowHeight);
+        if (fitting != visibleGroups) {
+            visibleGroups = fitting;
+            client.updateVariable(paintableId, VISIBLE_GROUPS.v,
+                    visibleGroups, true);
+        }
+    }
+
+    /**
+     * Called when the group scroll bar is scrolled. Tells the server which
+     * groups are in view, once per event loop.
+     */
+    private void onGroupScroll() {
+        if (groupScrollScheduled) {
+            return;
+        }
+        groupScrollScheduled = true;
+        Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+
+            @Override
+            public void execute() {
+                groupScrollScheduled = false;
+                if (groupScrollbar == null) {
+                    return;
+                }
+                int first = groupScrollbar.getScrollTop()
+                        / getGroupRowHeight();
+                if (first != firstGroup) {
+                    firstGroup = first;
+                    client.updateVariable(paintableId, FIRST_GROUP.v,
+                            firstGroup, true);
                 }
+            }
+
+        });
+    }
+
+    private int getGroupRowHeight() {
+        return getGroupRowHeightNative(getJso(), DEFAULT_GROUP_ROW_HEIGHT);
+    }
+
+    /**
+     * The average height of the rendered group rows.
+     */
+    private native int getGroupRowHeightNative(JavaScriptObject jso,
+            int defaultHeight) /*-{
+     var groups = jso.groups || [];
+     var total = 0, count = 0;
+     for (var i = 0; i < groups.length; i++) {
+     if (groups[i].height) {
+     total += groups[i].height + jso.options.eventMargin;
+     count++;
+     }
+     }
+     return count > 0 ? Math.round(total / count) : defaultHeight;
+     }-*/;
+
+    private native void setScrollHandlerNative(Element scrollbar) /*-{
+     var self = this;
+     scrollbar.onscroll = $entry(function() {
+     self.@fi.ninjaware.chaplinksvaadin.gwt.client.timeline.VTimeline::onGroupScroll()();
+     });
+     }-*/;
+
+    /**
+     * Remove events from the timeline and the event index.
+     *
+     * @param handles The event handles.
+     */
+    private void removeEvents(int[] handles) {
+        if (handles.length == 0) {
+            return;
+        }
+        JsArrayInteger removed = JavaScriptObject.createArray().cast();
+        for (int handle : handles) {
+            removed.push(handle);
+        }
+        removeEventsNative(getJso(), removed);
+        if (eventIndex != null) {
+            eventIndex.removeEvents(removed);
+        }
+    }
+
+    private native void removeEventsNative(JavaScriptObject jso,
+            JsArrayInteger handles) /*-{
+     var removed = {};
+     for (var i = 0; i < handles.length; i++) {
+     removed[handles[i]] = true;
+     }
+
+     var data = jso.data || [];
+     for (var i = data.length - 1; i >= 0; i--) {
+     if (data[i].handle !== undefined && removed[data[i].handle]) {
+     jso.deleteItem(i, true);
+     }
+     }
+     jso.render({animate: false});
+     }-*/;
+
+    /**
+     * Remove the items of the given groups and the group rows.
+     */
+    private native void removeGroupsNative(JavaScriptObject jso,
+            JsArrayString groups) /*-{
+     var removed = {};
+     for (var i = 0; i < groups.length; i++) {
+     removed[groups[i]] = true;
+     }
+
+     var data = jso.data || [];
+     for (var i = data.length - 1; i >= 0; i--) {
+     var handle = data[i].handle;
+     if (handle !== undefined
+     && handle > @fi.ninjaware.chaplinksvaadin.gwt.client.timeline.VTimelineEvent::LAST_ADDED_HANDLE
+     && removed[data[i].group]) {
+     jso.deleteItem(i, true);
+     }
+     }
+
+     var kept = [];
+     for (var i = 0; i < jso.groups.length; i++) {
+     if (!removed[jso.groups[i].content]) {
+     kept.push(jso.groups[i]);
+     }
+     }
+     jso.groups = kept;
+     jso.groupIndexes = {};
+     for (var i = 0; i < kept.length; i++) {
+     jso.groupIndexes[kept[i].content] = i;
+     }
+     jso.render({animate: false});
+     }-*/;
+
+    /**
+     * Get the event at an index of the timeline data.
+     */
+    private native VTimelineEvent getDataItem(JavaScriptObject jso,
+            int index) /*-{
+     var data = jso.data || [];
+     return data[index];
+     }-*/;
+
+    /**
+     * Cache the events of the windows received from the server and update
+     * the rendered items.
+     *
+     * @param windows The received windows.
+     * @param events The events overlapping the windows.
+     */
+    private void cacheWindows(WindowResponse windows,
+            JsArray<VTimelineEvent> events) {
+        double now = Duration.currentTimeMillis();
+        for (int i = 0; i < windows.keys.length; i++) {
+            TimeWindow window = TimeWindow.parse(windows.keys[i]);
+            JsArray<VTimelineEvent> windowEvents = windowCache.put(window,
+                    events, windows.tags[i], windows.version);
+            requestedWindows.remove(windows.keys[i]);
+
+            // Only the past is stored, the present is likely to change.
+            if (window.getEnd() <= now) {
+                windowStore.put(windows.keys[i], windows.tags[i],
+                        windowEvents);
+            }
+        }
+        updateVisibleItems();
+    }
+
+    /**
+     * Mark the cached windows the server reported unchanged valid for the
+     * current data version.
+     *
+     * @param keys The keys of the unchanged windows.
+     */
+    private void revalidateWindows(String[] keys) {
+        for (String key : keys) {
+            windowCache.revalidate(key, dataVersion);
+            requestedWindows.remove(key);
+        }
+    }
+
+    /**
+     * Request the windows covering the visible range and prefetch the
+     * adjacent ones. The faster the user pans, the more windows are
+     * prefetched in the panning direction. Windows already cached or
+     * requested are skipped.
+     */
+    private void requestWindows() {
+        DateRange range = getVisibleChartRange();
+        double start = range.getStart().getTime();
+        double end = range.getEnd().getTime();
+        long size = TimeWindow.sizeFor(end - start);
+
+        // Track the panning velocity at the current zoom level.
+        double center = (start + end) / 2;
+        double now = Duration.currentTimeMillis();
+        double velocity = 0;
+        if (size == lastWindowSize && now > lastRangeChange) {
+            velocity = (center - lastCenter) / (now - lastRangeChange);
+        }
+        lastCenter = center;
+        lastRangeChange = now;
+        lastWindowSize = size;
 
-                dtCol++;
+        List<TimeWindow> wanted = TimeWindow.covering(start, end, size);
+        long first = wanted.get(0).index;
+        long last = wanted.get(wanted.size() - 1).index;
+        if (velocity == 0) {
+            wanted.add(new TimeWindow(size, first - 1));
+            wanted.add(new TimeWindow(size, last + 1));
+        } else {
+            int ahead = (int) Math.min(MAX_PREFETCH_WINDOWS, 1 + Math.ceil(
+                    Math.abs(velocity) * PREFETCH_LOOKAHEAD_MILLIS / size));
+            for (int i = 1; i <= ahead; i++) {
+                wanted.add(new TimeWindow(size,
+                        velocity > 0 ? last + i : first - i));
             }
+        }
 
-            if (icons.containsKey(id)) {
-                String iconUri = client.translateVaadinUri(icons.get(id));
-                String content = dt.getValueString(i, contentCol);
+        // Windows cached for an older version are requested with their tag,
+        // so the server can tell if they are unchanged.
+        List<String> requests = new ArrayList<String>();
+        for (TimeWindow window : wanted) {
+            String key = window.getKey();
+            if (windowCache.isCurrent(key, dataVersion)
+                    || requestedWindows.contains(key)) {
+                continue;
+            }
+            requestedWindows.add(key);
+            String tag = windowCache.getTag(key);
+            if (tag == null) {
+                tag = restoreWindow(window);
+            }
+            if (dataUrl != null) {
+                fetchWindow(key);
+                continue;
+            }
+            requests.add(tag != null ? key + "=" + tag : key);
+        }
 
-                AlignmentInfo iconAlign = iconAlignments.containsKey(id)
-                        ? iconAlignments.get(id)
-                        : defaultIconAlignment;
+        if (!requests.isEmpty()) {
+            client.updateVariable(paintableId, WINDOW_REQUEST.v,
+                    requests.toArray(new String[requests.size()]), true);
+        }
+    }
 
-                Element icon = DOM.createImg();
-                icon.setPropertyString("src", iconUri);
-                Element helperSpan = DOM.createSpan();
-                helperSpan.appendChild(icon);
+    /**
+     * Restore a window from the browser storage into the cache. It isn't
+     * valid for any data version until the server confirms its tag.
+     *
+     * @param window The window.
+     * @return The tag of the restored window, or null if it wasn't stored.
+     */
+    private String restoreWindow(TimeWindow window) {
+        String key = window.getKey();
+        String tag = windowStore.getTag(key);
+        if (tag != null) {
+            windowCache.put(window, windowStore.get(key), tag, -1);
+        }
+        return tag;
+    }
 
-                StringBuilder style = new StringBuilder();
+    /**
+     * Fetch a window from the HTTP data channel. The URL is derived from the
+     * contents, so the browser cache can serve windows fetched before. A
+     * window cached for an older data version is requested with its tag,
+     * and the server answers with an empty response if it is unchanged.
+     *
+     * @param key The window key.
+     */
+    private void fetchWindow(final String key) {
+        final String url = dataUrl;
+        final String tag = windowCache.getTag(key);
+        RequestBuilder builder = new RequestBuilder(RequestBuilder.GET,
+                url + key);
+        if (tag != null) {
+            builder.setHeader("If-None-Match", "\"" + tag + "\"");
+        }
+        try {
+            builder.sendRequest(null, new RequestCallback() {
 
-                if (iconAlign.isLeft() || iconAlign.isHorizontalCenter()) {
-                    style.append("margin-right: auto;");
+                @Override
+                public void onResponseReceived(Request request,
+                        Response response) {
+                    boolean unchanged = tag != null && (response
+                            .getStatusCode() == Response.SC_NOT_MODIFIED
+                            || response.getText().isEmpty());
+                    String type = response.getHeader("Content-Type");
+                    if (!unchanged && (response.getStatusCode()
+                            != Response.SC_OK || type == null
+                            || !type.startsWith("application/json"))) {
+                        onError(request, new RequestException(
+                                "Unexpected response " + response
+                                .getStatusCode() + " for window " + key));
+                        return;
+                    }
+                    if (!url.equals(dataUrl)) {
+                        // The data has changed since.
+                        requestedWindows.remove(key);
+                        return;
+                    }
+                    if (unchanged) {
+                        revalidateWindow(key);
+                        return;
+                    }
+                    receiveWindow(JSONParser.parseStrict(response.getText())
+                            .isObject());
                 }
-                if (iconAlign.isRight() || iconAlign.isHorizontalCenter()) {
-                    style.append("margin-left: auto;");
+
+                @Override
+                public void onError(Request request, Throwable exception) {
+                    VConsole.error(exception);
+                    requestedWindows.remove(key);
                 }
 
-                style.append("vertical-align: ")
-                        .append(iconAlign.getVerticalAlignment())
-                        .append(";");
+            });
+        } catch (RequestException ex) {
+            VConsole.error(ex);
+            requestedWindows.remove(key);
+        }
+    }
 
-                if (iconAlign.isBottom() || iconAlign.isTop()) {
-                    style.append("display: block;");
-                }
+    /**
+     * Decode and cache a window fetched from the HTTP data channel for the
+     * current data version. A window with the same tag as the cached one is
+     * only revalidated. The window is decoded with its own field defaults,
+     * since a cached response may outlive the defaults sent in UIDL.
+     *
+     * @param window The window JSON.
+     */
+    private void receiveWindow(JSONObject window) {
+        String key = window.get("key").isString().stringValue();
+        String tag = window.get("tag").isString().stringValue();
+        long version = dataVersion;
+
+        if (tag.equals(windowCache.getTag(key))) {
+            revalidateWindow(key);
+            return;
+        }
 
-                icon.setPropertyString("style", style.toString());
+        JSONArray fieldArray = window.get("fields").isArray();
+        String[] fields = new String[fieldArray.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fieldArray.get(i).isString().stringValue();
+        }
 
-                String value;
+        Map<String, String> icons = new HashMap<String, String>();
+        JSONObject iconObject = window.get("icons").isObject();
+        for (String handle : iconObject.keySet()) {
+            icons.put(handle, iconObject.get(handle).isString()
+                    .stringValue());
+        }
+        Map<String, AlignmentInfo> iconAlignments
+                = new HashMap<String, AlignmentInfo>();
+        JSONObject alignmentObject = window.get("iconAlignments").isObject();
+        for (String handle : alignmentObject.keySet()) {
+            iconAlignments.put(handle, new AlignmentInfo((int) alignmentObject
+                    .get(handle).isNumber().doubleValue()));
+        }
 
-                /*
-                 I = Icon first
-                 C = Text first
-                 III
-                 IIC
-                 CCC
-                 */
-                if (iconAlign.isBottom()
-                        || (iconAlign.isRight() && !iconAlign.isTop())) {
-                    value = content + helperSpan.getInnerHTML();
+        Map<String, String> windowColumnDefaults = toMap(
+                window.get("columnDefaults").isObject());
+        Map<String, Map<String, String>> windowGroupDefaults
+                = new HashMap<String, Map<String, String>>();
+        JSONObject groupObject = window.get("groupDefaults").isObject();
+        for (String group : groupObject.keySet()) {
+            windowGroupDefaults.put(group,
+                    toMap(groupObject.get(group).isObject()));
+        }
+
+        // Windows are decoded independently of the UIDL updates, so the
+        // decoder isn't cancelled by them.
+        Scheduler.get().scheduleIncremental(new IncrementalDecoder(fields,
+                window.get("events").isArray(), icons, iconAlignments,
+                windowColumnDefaults, windowGroupDefaults,
+                new WindowResponse(new String[]{key}, new String[]{tag},
+                        version)));
+    }
+
+    /**
+     * Mark a cached window valid for the current data version.
+     *
+     * @param key The window key.
+     */
+    private void revalidateWindow(String key) {
+        windowCache.revalidate(key, dataVersion);
+        requestedWindows.remove(key);
+        updateVisibleItems();
+    }
+
+    /**
+     * Convert a JSON object of strings to a map.
+     */
+    private static Map<String, String> toMap(JSONObject object) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String key : object.keySet()) {
+            map.put(key, object.get(key).isString().stringValue());
+        }
+        return map;
+    }
+
+    /**
+     * Give the timeline the events overlapping the visible range and the
+     * buffer around it, and remove the rest. Does nothing unless render
+     * culling or windowed loading is on.
+     */
+    private void updateVisibleItems() {
+        if (!windowed && (!renderCulling || eventIndex == null)) {
+            return;
+        }
+
+        DateRange range = getVisibleChartRange();
+        double start = range.getStart().getTime();
+        double end = range.getEnd().getTime();
+        double buffer = (end - start) * CULLING_BUFFER;
+
+        if (windowed) {
+            syncItemsNative(getJso(), windowCache.query(start - buffer,
+                    end + buffer, TimeWindow.sizeFor(end - start),
+                    dataVersion));
+        } else {
+            syncItemsNative(getJso(), eventIndex.query(start - buffer,
+                    end + buffer));
+        }
+    }
+
+    /**
+     * Replace the items of the timeline with <code>wanted</code>. Items that
+     * are already rendered are kept, and items added on the client side are
+     * never removed.
+     */
+    private native void syncItemsNative(JavaScriptObject jso,
+            JsArray<VTimelineEvent> wanted) /*-{
+     var want = {};
+     for (var i = 0; i < wanted.length; i++) {
+     want[wanted[i].handle] = true;
+     }
+
+     var data = jso.data || [];
+     var present = {};
+     for (var i = data.length - 1; i >= 0; i--) {
+     var handle = data[i].handle;
+     if (handle === undefined
+     || handle <= @fi.ninjaware.chaplinksvaadin.gwt.client.timeline.VTimelineEvent::LAST_ADDED_HANDLE) {
+     continue;
+     }
+     if (want[handle]) {
+     present[handle] = true;
+     } else {
+     jso.deleteItem(i, true);
+     }
+     }
+
+     var added = [];
+     for (var i = 0; i < wanted.length; i++) {
+     if (!present[wanted[i].handle]) {
+     added.push(wanted[i]);
+     }
+     }
+     jso.addItems(added, true);
+     jso.render({animate: false});
+     }-*/;
+
+    /**
+     * Ask the server side for the next chunk of events once the browser has
+     * rendered the current one.
+     */
+    private void requestNextChunk() {
+        Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+
+            @Override
+            public void execute() {
+                client.updateVariable(paintableId, NEXT_CHUNK.v, true, true);
+            }
+
+        });
+    }
+
+    /**
+     * Decode a timeline event from the UIDL data.
+     *
+     * @param fields The fields used in <code>event</code>.
+     * @param event The timeline event as a JSON array.
+     * @param icons A map of event handles and icon UIDL URIs.
+     * @param iconAlignments A map of event handles and icon alignments.
+     * @param columnDefaults The default values of the fields.
+     * @param groupDefaults The group defaults differing from the column
+     * defaults.
+     * @return The decoded event.
+     */
+    private VTimelineEvent decodeEvent(EventFields[] fields, JSONArray event,
+            Map<String, String> icons,
+            Map<String, AlignmentInfo> iconAlignments,
+            Map<String, String> columnDefaults,
+            Map<String, Map<String, String>> groupDefaults) {
+        VTimelineEvent decodedEvent = VTimelineEvent.create();
+
+        // The event handle. Icons are keyed by it.
+        int handle = (int) event.get(0).isNumber().doubleValue();
+        decodedEvent.setHandle(handle);
+        String id = String.valueOf(handle);
+
+        // Iterate the event fields. Ignore the first field (=id). Fields left
+        // out or null have the default value. The group comes before the
+        // fields that can have defaults.
+        for (int j = 1; j <= fields.length; j++) {
+            EventFields field = fields[j - 1];
+            JSONValue token = j < event.size() ? event.get(j) : null;
+
+            // Templated content.
+            JSONArray template = token != null ? token.isArray() : null;
+            if (template != null) {
+                decodedEvent.setString(field.jsId, templates.expand(template));
+                continue;
+            }
+
+            String value;
+            if (token == null || token.isNull() != null) {
+                value = getFieldDefault(field, decodedEvent.getGroup(),
+                        columnDefaults, groupDefaults);
+                if (value == null) {
+                    continue;
+                }
+            } else {
+                value = token.isString().stringValue();
+            }
+            if (!value.isEmpty()) {
+                if (field.type.equals(ColumnType.DATE)) {
+                    decodedEvent.setDate(field.jsId, Long.parseLong(value));
+                } else if (field.type.equals(ColumnType.BOOLEAN)) {
+                    decodedEvent.setBoolean(field.jsId,
+                            Boolean.parseBoolean(value));
+                } else if (field.type.equals(ColumnType.NUMBER)) {
+                    decodedEvent.setNumber(field.jsId,
+                            Double.parseDouble(value));
                 } else {
-                    value = helperSpan.getInnerHTML() + content;
+                    decodedEvent.setString(field.jsId, value);
                 }
-
-                dt.setValue(i, contentCol, value);
             }
         }
 
-        return dt;
+        if (icons.containsKey(id)) {
+            String iconUri = client.translateVaadinUri(icons.get(id));
+            AlignmentInfo iconAlign = iconAlignments.containsKey(id)
+                    ? iconAlignments.get(id)
+                    : defaultIconAlignment;
+
+            String content = decodedEvent.getContent();
+            decodedEvent.setString(EventFields.CONTENT.jsId,
+                    addIcon(content != null ? content : "", iconUri,
+                            iconAlign));
+        }
+
+        return decodedEvent;
+    }
+
+    /**
+     * Get the default value of a field left out of an event.
+     *
+     * @param field The field.
+     * @param group The event group or null.
+     * @param columnDefaults The default values of the fields.
+     * @param groupDefaults The group defaults differing from the column
+     * defaults.
+     * @return The default, or null if there isn't one.
+     */
+    private static String getFieldDefault(EventFields field, String group,
+            Map<String, String> columnDefaults,
+            Map<String, Map<String, String>> groupDefaults) {
+        Map<String, String> defaults = groupDefaults.get(
+                group != null ? group : "");
+        if (defaults != null && defaults.containsKey(field.name())) {
+            return defaults.get(field.name());
+        }
+        return columnDefaults.get(field.name());
+    }
+
+    /**
+     * Add an icon to the event content.
+     *
+     * @param content The event content.
+     * @param iconUri The translated icon URI.
+     * @param iconAlign The icon alignment.
+     * @return The content with the icon.
+     */
+    private String addIcon(String content, String iconUri,
+            AlignmentInfo iconAlign) {
+        Element icon = DOM.createImg();
+        icon.setPropertyString("src", iconUri);
+        Element helperSpan = DOM.createSpan();
+        helperSpan.appendChild(icon);
+
+        StringBuilder style = new StringBuilder();
+
+        if (iconAlign.isLeft() || iconAlign.isHorizontalCenter()) {
+            style.append("margin-right: auto;");
+        }
+        if (iconAlign.isRight() || iconAlign.isHorizontalCenter()) {
+            style.append("margin-left: auto;");
+        }
+
+        style.append("vertical-align: ")
+                .append(iconAlign.getVerticalAlignment())
+                .append(";");
+
+        if (iconAlign.isBottom() || iconAlign.isTop()) {
+            style.append("display: block;");
+        }
+
+        icon.setPropertyString("style", style.toString());
+
+        /*
+         I = Icon first
+         C = Text first
+         III
+         IIC
+         CCC
+         */
+        if (iconAlign.isBottom()
+                || (iconAlign.isRight() && !iconAlign.isTop())) {
+            return content + helperSpan.getInnerHTML();
+        } else {
+            return helperSpan.getInnerHTML() + content;
+        }
     }
 
+    /**
+     * Append events to the timeline.
+     *
+     * @param items The events to append.
+     * @param preventRender True to skip rendering the timeline.
+     */
+    public void addItems(JsArray<VTimelineEvent> items,
+            boolean preventRender) {
+        addItemsNative(getJso(), items, preventRender);
+    }
+
+    private native void addItemsNative(JavaScriptObject jso,
+            JsArray<VTimelineEvent> items, boolean preventRender) /*-{
+     jso.addItems(items, preventRender);
+     }-*/;
+
     /**
      * Get the number of events on the timeline.
      *
@@ -350,20 +1365,261 @@ public class VTimeline extends Timeline implements Paintable {
      return jso.items.length;
      }-*/;
 
+    /**
+     * The time windows received in one update in windowed loading.
+     */
+    static class WindowResponse {
+
+        final String[] keys;
+
+        /**
+         * The server side tags of the window contents, parallel to
+         * <code>keys</code>.
+         */
+        final String[] tags;
+
+        final long version;
+
+        WindowResponse(String[] keys, String[] tags, long version) {
+            this.keys = keys;
+            this.tags = tags;
+            this.version = version;
+        }
+
+    }
+
+    /**
+     * Decodes the events in time slices, so the browser stays responsive
+     * during large loads. The first slice is drawn right away. The server
+     * sends the events in the viewport first, so they are the ones shown.
+     * The rest are appended without rendering until the last slice.
+     */
+    class IncrementalDecoder implements RepeatingCommand {
+
+        private final EventFields[] fields;
+
+        /**
+         * The events as JSON strings from UIDL, or null.
+         */
+        private final String[] events;
+
+        /**
+         * The events already parsed, when fetched from the HTTP data
+         * channel, or null.
+         */
+        private final JSONArray parsedEvents;
+
+        private final int count;
+
+        private final Map<String, String> icons;
+
+        private final Map<String, AlignmentInfo> iconAlignments;
+
+        private final Map<String, String> columnDefaults;
+
+        private final Map<String, Map<String, String>> groupDefaults;
+
+        private final boolean append;
+
+        private final boolean moreEvents;
+
+        /**
+         * The windows the events belong to, or null when not using windowed
+         * loading.
+         */
+        private final WindowResponse windows;
+
+        /**
+         * All the decoded events, when using windowed loading.
+         */
+        private final JsArray<VTimelineEvent> decoded = JavaScriptObject
+                .createArray().cast();
+
+        private int next = 0;
+
+        private boolean drawn = false;
+
+        private boolean cancelled = false;
+
+        IncrementalDecoder(String[] fields, String[] events,
+                Map<String, String> icons,
+                Map<String, AlignmentInfo> iconAlignments, boolean append,
+                boolean moreEvents, WindowResponse windows) {
+            this.fields = new EventFields[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                this.fields[i] = EventFields.valueOf(fields[i]);
+            }
+            this.events = events;
+            this.parsedEvents = null;
+            this.count = events.length;
+            this.icons = icons;
+            this.iconAlignments = iconAlignments;
+            this.columnDefaults = new HashMap<String, String>(
+                    VTimeline.this.columnDefaults);
+            this.groupDefaults = new HashMap<String, Map<String, String>>(
+                    VTimeline.this.groupDefaults);
+            this.append = append;
+            this.moreEvents = moreEvents;
+            this.windows = windows;
+        }
+
+        IncrementalDecoder(String[] fields, JSONArray events,
+                Map<String, String> icons,
+                Map<String, AlignmentInfo> iconAlignments,
+                Map<String, String> columnDefaults,
+                Map<String, Map<String, String>> groupDefaults,
+                WindowResponse windows) {
+            this.fields = new EventFields[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                this.fields[i] = EventFields.valueOf(fields[i]);
+            }
+            this.events = null;
+            this.parsedEvents = events;
+            this.count = events.size();
+            this.icons = icons;
+            this.iconAlignments = iconAlignments;
+            this.columnDefaults = columnDefaults;
+            this.groupDefaults = groupDefaults;
+            this.append = true;
+            this.moreEvents = false;
+            this.windows = windows;
+        }
+
+        private JSONArray eventAt(int index) {
+            return parsedEvents != null ? parsedEvents.get(index).isArray()
+                    : JSONParser.parseStrict(events[index]).isArray();
+        }
+
+        @Override
+        public boolean execute() {
+            if (cancelled) {
+                return false;
+            }
+
+            Duration duration = new Duration();
+            JsArray<VTimelineEvent> slice = JavaScriptObject.createArray()
+                    .cast();
+            while (next < count
+                    && duration.elapsedMillis() < DECODE_SLICE_MILLIS) {
+                slice.push(decodeEvent(fields, eventAt(next++), icons,
+                        iconAlignments, columnDefaults, groupDefaults));
+            }
+            boolean done = next == count;
+
+            if (windows != null) {
+                // The windows are rendered from the cache once complete.
+                for (int i = 0; i < slice.length(); i++) {
+                    decoded.push(slice.get(i));
+                }
+                if (done) {
+                    cacheWindows(windows, decoded);
+                }
+            } else if (renderCulling) {
+                if (!append && !drawn) {
+                    // The timeline only gets the events near the visible
+                    // range.
+                    eventIndex = VTimelineEventIndex.create();
+                    data = JavaScriptObject.createArray().cast();
+                    draw(data, options);
+                } else if (eventIndex == null) {
+                    eventIndex = VTimelineEventIndex.create();
+                }
+                eventIndex.add(slice);
+                if (!drawn || done) {
+                    updateVisibleItems();
+                }
+                drawn = true;
+            } else if (!append && !drawn) {
+                eventIndex = null;
+                // The timeline appends later slices to the data array, too.
+                data = slice;
+                draw(data, options);
+                drawn = true;
+            } else {
+                addItems(slice, !done);
+            }
+
+            if (done) {
+                if (decoder == this) {
+                    decoder = null;
+                }
+                if (moreEvents) {
+                    requestNextChunk();
+                }
+            }
+            return !done;
+        }
+
+        /**
+         * Stop decoding. Called when newer events replace these.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+    }
+
+    /**
+     * Requests the full content of a selected event from the server, unless
+     * it has been loaded already.
+     */
+    class TimelineSelectHandler extends SelectHandler {
+
+        private boolean enabled;
+
+        @Override
+        public void onSelect(SelectEvent event) {
+            if (!enabled) {
+                return;
+            }
+
+            JsArray<Selection> selections = getSelections();
+            if (selections.length() == 0) {
+                return;
+            }
+            VTimelineEvent selected = getDataItem(getJso(),
+                    selections.get(0).getRow());
+            if (selected == null || selected.getHandle() < 0
+                    || selected.isContentLoaded()) {
+                return;
+            }
+
+            client.updateVariable(paintableId, CONTENT_REQUEST.v,
+                    selected.getHandle(), true);
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+    }
+
     class TimelineAddHandler extends AddHandler {
 
         private boolean enabled;
 
+        /**
+         * The handle of the next event added on the client side.
+         */
+        private int nextAddedHandle = VTimelineEvent.FIRST_ADDED_HANDLE;
+
         @Override
         public void onAdd(AddEvent event) {
             if (!enabled) {
                 return;
             }
 
-            // Find the new event.
+            // Find the new event, and give it a handle of its own. The index
+            // of the item changes as the server side adds and removes events.
             int index = getEventCount() - 1;
             VTimelineEvent newEvent = (VTimelineEvent) getItem(index).cast();
-            client.updateVariable(paintableId, NEW_EVENT.v + index,
+            int handle = nextAddedHandle++;
+            newEvent.setHandle(handle);
+            client.updateVariable(paintableId, NEW_EVENT.v + handle,
                     newEvent.getSerialized(), immediate);
         }
 
@@ -10,9 +10,71 @@ import java.util.Date;
  */
 public class VTimelineEvent extends JavaScriptObject {
 
+    /**
+     * The first handle of the events added on the client side. They get the
+     * handles from here upwards, and the summary events the server side
+     * sends get negative handles from -2 downwards, so the two never meet.
+     */
+    public static final int FIRST_ADDED_HANDLE = Integer.MIN_VALUE;
+
+    /**
+     * The last handle reserved for the events added on the client side.
+     */
+    public static final int LAST_ADDED_HANDLE = -(1 << 30);
+
     protected VTimelineEvent() {
     }
 
+    /**
+     * Create a new empty event.
+     *
+     * @return The event.
+     */
+    public static native VTimelineEvent create()/*-{
+     return {};
+     }-*/;
+
+    /**
+     * The event handle assigned by the server side.
+     *
+     * @return The handle, -1 if the event wasn't sent by the server, or a
+     * handle between <code>FIRST_ADDED_HANDLE</code> and
+     * <code>LAST_ADDED_HANDLE</code> if it was added on the client side.
+     */
+    public final native int getHandle()/*-{
+     return this.handle === undefined ? -1 : this.handle;
+     }-*/;
+
+    public final native void setHandle(int handle)/*-{
+     this.handle = handle;
+     }-*/;
+
+    /**
+     * Check whether the full content of the event has been loaded, when the
+     * contents are loaded lazily.
+     *
+     * @return True, if the content is the full content.
+     */
+    public final native boolean isContentLoaded()/*-{
+     return !!this.contentLoaded;
+     }-*/;
+
+    public final native void setDate(String field, double msecs)/*-{
+     this[field] = new Date(msecs);
+     }-*/;
+
+    public final native void setBoolean(String field, boolean value)/*-{
+     this[field] = value;
+     }-*/;
+
+    public final native void setNumber(String field, double value)/*-{
+     this[field] = value;
+     }-*/;
+
+    public final native void setString(String field, String value)/*-{
+     this[field] = value;
+     }-*/;
+
     public final native JsDate getStartNative()/*-{ 
      return this.start; 
      }-*/;
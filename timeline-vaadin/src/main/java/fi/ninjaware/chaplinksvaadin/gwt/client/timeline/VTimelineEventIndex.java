@@ -0,0 +1,164 @@
+package fi.ninjaware.chaplinksvaadin.gwt.client.timeline;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayInteger;
+import com.google.gwt.core.client.JsArrayString;
+
+/**
+ * A JavaScript side index of decoded events sorted by their start. Used to
+ * find the events overlapping a time range without scanning all of them.
+ *
+ * @author miku
+ */
+public class VTimelineEventIndex extends JavaScriptObject {
+
+    protected VTimelineEventIndex() {
+    }
+
+    /**
+     * Create a new empty index.
+     *
+     * @return The index.
+     */
+    public static native VTimelineEventIndex create()/*-{
+     return { events: [], maxDuration: 0 };
+     }-*/;
+
+    /**
+     * Add events to the index. Only the added events are sorted, and then
+     * merged with the indexed ones in one pass. Events arriving in the order
+     * of their start are just appended.
+     *
+     * @param added The events to add.
+     */
+    public final native void add(JsArray<VTimelineEvent> added)/*-{
+     var sorted = added.slice(0);
+     for (var i = 0; i < sorted.length; i++) {
+     var e = sorted[i];
+     if (e.end) {
+     this.maxDuration = Math.max(this.maxDuration,
+     e.end.getTime() - e.start.getTime());
+     }
+     }
+     sorted.sort(function(a, b) {
+     return a.start.getTime() - b.start.getTime();
+     });
+     if (sorted.length == 0) {
+     return;
+     }
+
+     var events = this.events;
+     if (events.length == 0 || events[events.length - 1].start.getTime()
+     <= sorted[0].start.getTime()) {
+     for (var i = 0; i < sorted.length; i++) {
+     events.push(sorted[i]);
+     }
+     return;
+     }
+
+     // The indexed events come first among equal starts.
+     var merged = new Array(events.length + sorted.length);
+     var a = 0, b = 0, m = 0;
+     while (a < events.length && b < sorted.length) {
+     if (sorted[b].start.getTime() < events[a].start.getTime()) {
+     merged[m++] = sorted[b++];
+     } else {
+     merged[m++] = events[a++];
+     }
+     }
+     while (a < events.length) {
+     merged[m++] = events[a++];
+     }
+     while (b < sorted.length) {
+     merged[m++] = sorted[b++];
+     }
+     this.events = merged;
+     }-*/;
+
+    /**
+     * Remove the events of the given groups.
+     *
+     * @param groups The group names.
+     */
+    public final native void removeGroups(JsArrayString groups)/*-{
+     var removed = {};
+     for (var i = 0; i < groups.length; i++) {
+     removed[groups[i]] = true;
+     }
+     var kept = [];
+     for (var i = 0; i < this.events.length; i++) {
+     if (!removed[this.events[i].group]) {
+     kept.push(this.events[i]);
+     }
+     }
+     this.events = kept;
+     }-*/;
+
+    /**
+     * Remove events by their handles.
+     *
+     * @param handles The event handles.
+     */
+    public final native void removeEvents(JsArrayInteger handles)/*-{
+     var removed = {};
+     for (var i = 0; i < handles.length; i++) {
+     removed[handles[i]] = true;
+     }
+     var kept = [];
+     for (var i = 0; i < this.events.length; i++) {
+     if (!removed[this.events[i].handle]) {
+     kept.push(this.events[i]);
+     }
+     }
+     this.events = kept;
+     }-*/;
+
+    /**
+     * The number of events in the index.
+     *
+     * @return The number of events.
+     */
+    public final native int size()/*-{
+     return this.events.length;
+     }-*/;
+
+    /**
+     * Find the events overlapping a time range.
+     *
+     * @param start Range start in milliseconds.
+     * @param end Range end in milliseconds.
+     * @return The overlapping events sorted by their start.
+     */
+    public final native JsArray<VTimelineEvent> query(double start,
+            double end)/*-{
+     var events = this.events;
+     var result = [];
+
+     // Binary search for the first event that can overlap the range.
+     var from = start - this.maxDuration;
+     var lo = 0, hi = events.length;
+     while (lo < hi) {
+     var mid = (lo + hi) >>> 1;
+     if (events[mid].start.getTime() < from) {
+     lo = mid + 1;
+     } else {
+     hi = mid;
+     }
+     }
+
+     for (var i = lo; i < events.length; i++) {
+     var e = events[i];
+     var eStart = e.start.getTime();
+     if (eStart > end) {
+     break;
+     }
+     var eEnd = e.end ? e.end.getTime() : eStart;
+     if (eEnd >= start) {
+     result.push(e);
+     }
+     }
+     return result;
+     }-*/;
+
+}
@@ -0,0 +1,91 @@
+package fi.ninjaware.chaplinksvaadin.gwt.client.timeline;
+
+import com.google.gwt.json.client.JSONArray;
+import com.google.gwt.json.client.JSONString;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.ContentTemplate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The content templates received from the server side. Expands the template
+ * references of the events and caches the expanded contents, since the same
+ * parameters tend to repeat.
+ *
+ * @author miku
+ */
+public class VTimelineTemplates {
+
+    /**
+     * The maximum number of cached contents. The cache is cleared when full.
+     */
+    private static final int MAX_CACHED = 1000;
+
+    /**
+     * The templates as received, used to detect changes.
+     */
+    private String[] received = new String[0];
+
+    /**
+     * Key = template id.
+     */
+    private final Map<String, ContentTemplate> templates
+            = new HashMap<String, ContentTemplate>();
+
+    /**
+     * Key = the template reference as JSON.
+     */
+    private final Map<String, String> expanded = new HashMap<String, String>();
+
+    /**
+     * Set the templates.
+     *
+     * @param idsAndTemplates Pairs of template ids and templates.
+     */
+    public void setTemplates(String[] idsAndTemplates) {
+        if (Arrays.equals(received, idsAndTemplates)) {
+            return;
+        }
+
+        received = idsAndTemplates;
+        templates.clear();
+        expanded.clear();
+        for (int i = 0; i + 1 < idsAndTemplates.length; i += 2) {
+            templates.put(idsAndTemplates[i],
+                    new ContentTemplate(idsAndTemplates[i + 1]));
+        }
+    }
+
+    /**
+     * Expand a template reference.
+     *
+     * @param reference The template id followed by the parameters.
+     * @return The content, or an empty string if the template is unknown.
+     */
+    public String expand(JSONArray reference) {
+        String key = reference.toString();
+        String content = expanded.get(key);
+        if (content != null) {
+            return content;
+        }
+
+        ContentTemplate template = templates.get(
+                reference.get(0).isString().stringValue());
+        if (template == null) {
+            return "";
+        }
+        String[] params = new String[reference.size() - 1];
+        for (int i = 0; i < params.length; i++) {
+            JSONString param = reference.get(i + 1).isString();
+            params[i] = param != null ? param.stringValue() : null;
+        }
+        content = template.expand(params);
+
+        if (expanded.size() >= MAX_CACHED) {
+            expanded.clear();
+        }
+        expanded.put(key, content);
+        return content;
+    }
+
+}
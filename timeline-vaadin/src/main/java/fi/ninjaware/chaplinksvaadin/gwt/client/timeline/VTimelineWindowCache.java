@@ -0,0 +1,233 @@
+package fi.ninjaware.chaplinksvaadin.gwt.client.timeline;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import fi.ninjaware.chaplinksvaadin.gwt.shared.TimeWindow;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded time windows used in windowed loading. The windows are
+ * keyed by their range and zoom level and tagged with the data version they
+ * were received in. The least recently used windows are evicted when the
+ * estimated memory use exceeds the budget.
+ *
+ * @author miku
+ */
+public class VTimelineWindowCache {
+
+    /**
+     * A cached window.
+     */
+    private static class Entry {
+
+        final JsArray<VTimelineEvent> events;
+
+        /**
+         * The server side tag of the window contents.
+         */
+        final String tag;
+
+        /**
+         * The data version the contents are known to be valid for.
+         */
+        long version;
+
+        /**
+         * The estimated memory use in bytes.
+         */
+        final int bytes;
+
+        Entry(JsArray<VTimelineEvent> events, String tag, long version,
+                int bytes) {
+            this.events = events;
+            this.tag = tag;
+            this.version = version;
+            this.bytes = bytes;
+        }
+
+    }
+
+    /**
+     * The memory budget in bytes.
+     */
+    private int budget;
+
+    /**
+     * The estimated memory use of the cached windows in bytes.
+     */
+    private int totalBytes = 0;
+
+    /**
+     * The cached windows in access order. Key = window key.
+     */
+    private final Map<String, Entry> windows
+            = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    public VTimelineWindowCache(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Set the memory budget. Windows are evicted right away if needed.
+     *
+     * @param budget The budget in bytes.
+     */
+    public void setBudget(int budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Check whether a window is cached and valid for a data version. Doesn't
+     * count as a use of the window.
+     *
+     * @param key The window key.
+     * @param version The data version.
+     * @return True, if the window is cached for the version.
+     */
+    public boolean isCurrent(String key, long version) {
+        Entry entry = windows.get(key);
+        return entry != null && entry.version == version;
+    }
+
+    /**
+     * Get the tag of a cached window, regardless of its version.
+     *
+     * @param key The window key.
+     * @return The tag or null, if the window isn't cached.
+     */
+    public String getTag(String key) {
+        Entry entry = windows.get(key);
+        return entry != null ? entry.tag : null;
+    }
+
+    /**
+     * Mark a cached window valid for a newer data version. Called when the
+     * server tells the window hasn't changed.
+     *
+     * @param key The window key.
+     * @param version The data version.
+     */
+    public void revalidate(String key, long version) {
+        Entry entry = windows.get(key);
+        if (entry != null) {
+            entry.version = version;
+        }
+    }
+
+    /**
+     * Cache the events of a window.
+     *
+     * @param window The window.
+     * @param events The events, possibly including events outside the window.
+     * Only the ones overlapping the window are cached.
+     * @param tag The server side tag of the window contents.
+     * @param version The data version of the events.
+     * @return The cached events of the window.
+     */
+    public JsArray<VTimelineEvent> put(TimeWindow window,
+            JsArray<VTimelineEvent> events,
+            String tag, long version) {
+        JsArray<VTimelineEvent> windowEvents = JavaScriptObject.createArray()
+                .cast();
+        int bytes = appendOverlapping(windowEvents, null, events,
+                window.getStart(), window.getEnd() - 1);
+
+        Entry old = windows.remove(window.getKey());
+        if (old != null) {
+            totalBytes -= old.bytes;
+        }
+        windows.put(window.getKey(),
+                new Entry(windowEvents, tag, version, bytes));
+        totalBytes += bytes;
+        evict();
+        return windowEvents;
+    }
+
+    /**
+     * Find the cached events overlapping a time range.
+     *
+     * @param start Range start in milliseconds.
+     * @param end Range end in milliseconds.
+     * @param size The size of the windows to look in.
+     * @param version The data version. Windows of other versions are skipped.
+     * @return The events. Each event is included once.
+     */
+    public JsArray<VTimelineEvent> query(double start, double end, long size,
+            long version) {
+        JsArray<VTimelineEvent> result = JavaScriptObject.createArray()
+                .cast();
+        JavaScriptObject seen = JavaScriptObject.createObject();
+        for (TimeWindow window : TimeWindow.covering(start, end, size)) {
+            Entry entry = windows.get(window.getKey());
+            if (entry != null && entry.version == version) {
+                appendOverlapping(result, seen, entry.events, start, end);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget all the windows.
+     */
+    public void clear() {
+        windows.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Evict the least recently used windows until the memory use is within
+     * the budget.
+     */
+    private void evict() {
+        Iterator<Entry> it = windows.values().iterator();
+        while (totalBytes > budget && it.hasNext()) {
+            totalBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * Append the events overlapping a time range to <code>target</code>.
+     *
+     * @param target The array to append to.
+     * @param seen The handles already in <code>target</code>, or null to skip
+     * the check.
+     * @param source The events to filter.
+     * @param start Range start in milliseconds.
+     * @param end Range end in milliseconds.
+     * @return The estimated memory use of the appended events in bytes.
+     */
+    private static native int appendOverlapping(
+            JsArray<VTimelineEvent> target, JavaScriptObject seen,
+            JsArray<VTimelineEvent> source, double start, double end)/*-{
+     var bytes = 0;
+     for (var i = 0; i < source.length; i++) {
+     var e = source[i];
+     var eStart = e.start.getTime();
+     var eEnd = e.end ? e.end.getTime() : eStart;
+     if (eStart > end || eEnd < start) {
+     continue;
+     }
+     if (seen) {
+     if (seen[e.handle]) {
+     continue;
+     }
+     seen[e.handle] = true;
+     }
+     target.push(e);
+
+     // Object overhead plus two bytes per character of the strings.
+     bytes += 128;
+     for (var field in e) {
+     if (typeof e[field] === 'string') {
+     bytes += 2 * e[field].length;
+     }
+     }
+     }
+     return bytes;
+     }-*/;
+
+}
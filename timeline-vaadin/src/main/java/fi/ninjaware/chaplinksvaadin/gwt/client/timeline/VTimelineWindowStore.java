@@ -0,0 +1,150 @@
+package fi.ninjaware.chaplinksvaadin.gwt.client.timeline;
+
+import com.google.gwt.core.client.JavaScriptException;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.storage.client.Storage;
+import com.vaadin.terminal.gwt.client.VConsole;
+
+/**
+ * Keeps the windows of past time ranges in the local storage of the browser,
+ * so they survive page reloads. The windows are keyed by the dataset id and
+ * the window key, and carry the server side tag of their contents. A stored
+ * window is shown only after the server has confirmed the tag is current.
+ *
+ * @author miku
+ */
+public class VTimelineWindowStore {
+
+    /**
+     * Prefix of the storage keys. Increase the format number when the stored
+     * format changes, so the windows stored in an older format are no longer
+     * found.
+     */
+    private static final String PREFIX = "chaplinks-timeline-2/";
+
+    private final Storage storage = Storage.getLocalStorageIfSupported();
+
+    private String datasetId;
+
+    /**
+     * Set the dataset the windows belong to.
+     *
+     * @param datasetId The dataset id, or null to not store windows.
+     */
+    public void setDatasetId(String datasetId) {
+        this.datasetId = datasetId;
+    }
+
+    /**
+     * Check whether windows are stored.
+     *
+     * @return True, if the browser supports local storage and the dataset id
+     * is set.
+     */
+    public boolean isEnabled() {
+        return storage != null && datasetId != null;
+    }
+
+    /**
+     * Get the tag of a stored window.
+     *
+     * @param key The window key.
+     * @return The tag, or null if the window isn't stored.
+     */
+    public String getTag(String key) {
+        String json = isEnabled() ? storage.getItem(storageKey(key)) : null;
+        return json != null ? parseTag(json) : null;
+    }
+
+    /**
+     * Get the events of a stored window.
+     *
+     * @param key The window key.
+     * @return The events, or null if the window isn't stored.
+     */
+    public JsArray<VTimelineEvent> get(String key) {
+        String json = isEnabled() ? storage.getItem(storageKey(key)) : null;
+        return json != null ? parseEvents(json) : null;
+    }
+
+    /**
+     * Store a window. If the storage is full, the windows of the dataset are
+     * removed to make room for newer ones.
+     *
+     * @param key The window key.
+     * @param tag The server side tag of the window contents.
+     * @param events The events of the window.
+     */
+    public void put(String key, String tag, JsArray<VTimelineEvent> events) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        String json = stringify(tag, events);
+        try {
+            storage.setItem(storageKey(key), json);
+        } catch (JavaScriptException ex) {
+            VConsole.log("Window storage full, clearing dataset "
+                    + datasetId);
+            clear();
+        }
+    }
+
+    /**
+     * Remove the stored windows of the dataset.
+     */
+    public void clear() {
+        String prefix = PREFIX + datasetId + "/";
+        for (int i = storage.getLength() - 1; i >= 0; i--) {
+            String storageKey = storage.key(i);
+            if (storageKey != null && storageKey.startsWith(prefix)) {
+                storage.removeItem(storageKey);
+            }
+        }
+    }
+
+    private String storageKey(String key) {
+        return PREFIX + datasetId + "/" + key;
+    }
+
+    /**
+     * Convert a window to JSON. Every field of the events is kept, e.g. the
+     * stacking lane and whether the full content was loaded, with the dates
+     * as milliseconds.
+     */
+    private static native String stringify(String tag,
+            JsArray<VTimelineEvent> events)/*-{
+     var stored = [];
+     for (var i = 0; i < events.length; i++) {
+     var e = events[i];
+     var s = {};
+     for (var field in e) {
+     var value = e[field];
+     if (!e.hasOwnProperty(field) || field.charAt(0) == '$'
+     || typeof value == 'function') {
+     continue;
+     }
+     s[field] = value instanceof Date ? value.getTime() : value;
+     }
+     stored.push(s);
+     }
+     return JSON.stringify({ tag: tag, events: stored });
+     }-*/;
+
+    private static native String parseTag(String json)/*-{
+     return JSON.parse(json).tag;
+     }-*/;
+
+    private static native JsArray<VTimelineEvent> parseEvents(String json)/*-{
+     var events = JSON.parse(json).events;
+     for (var i = 0; i < events.length; i++) {
+     var e = events[i];
+     e.start = new Date(e.start);
+     if (e.end !== undefined) {
+     e.end = new Date(e.end);
+     }
+     }
+     return events;
+     }-*/;
+
+}
@@ -0,0 +1,90 @@
+package fi.ninjaware.chaplinksvaadin.gwt.shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An event content template. The template is HTML with the placeholders
+ * <code>{0}</code>, <code>{1}</code> and so on, which are replaced with the
+ * parameters of each event. The template is split into its parts once, so
+ * expanding it is a single pass over the parts.
+ *
+ * @author miku
+ */
+public final class ContentTemplate implements Serializable {
+
+    /**
+     * The literal parts of the template. The parameter
+     * <code>params[i]</code> goes between <code>literals[i]</code> and
+     * <code>literals[i + 1]</code>.
+     */
+    private final String[] literals;
+
+    /**
+     * The parameter indices of the placeholders in order.
+     */
+    private final int[] params;
+
+    public ContentTemplate(String template) {
+        List<String> literalList = new ArrayList<String>();
+        List<Integer> paramList = new ArrayList<Integer>();
+
+        int from = 0;
+        int open = template.indexOf('{');
+        while (open >= 0) {
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                break;
+            }
+            Integer index = parseIndex(template.substring(open + 1, close));
+            if (index == null) {
+                // Not a placeholder. Keep the brace as is.
+                open = template.indexOf('{', open + 1);
+                continue;
+            }
+            literalList.add(template.substring(from, open));
+            paramList.add(index);
+            from = close + 1;
+            open = template.indexOf('{', from);
+        }
+        literalList.add(template.substring(from));
+
+        literals = literalList.toArray(new String[literalList.size()]);
+        params = new int[paramList.size()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = paramList.get(i);
+        }
+    }
+
+    /**
+     * Expand the template. Missing parameters are replaced with empty
+     * strings.
+     *
+     * @param values The parameter values.
+     * @return The content.
+     */
+    public String expand(String[] values) {
+        StringBuilder sb = new StringBuilder(literals[0]);
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] < values.length && values[params[i]] != null) {
+                sb.append(values[params[i]]);
+            }
+            sb.append(literals[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    private static Integer parseIndex(String s) {
+        if (s.isEmpty() || s.length() > 3) {
+            return null;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return null;
+            }
+        }
+        return Integer.valueOf(s);
+    }
+
+}
@@ -23,10 +23,38 @@ public enum Shared implements Serializable {
     STYLE,
     AXISONTOP,
     NAVIGATION,
+    RENDER_CULLING,
+    LAZY_CONTENT,
+    SERVER_STACKING,
+    LANE,
+    GROUP_VIRTUALIZATION,
+    GROUP_TOTAL,
+    FIRST_GROUP,
+    VISIBLE_GROUPS,
+    REMOVED_GROUPS,
+    REMOVED_EVENTS,
+    CONTENTS,
+    CONTENT_REQUEST,
+    CONTENT_TEMPLATES,
     JS_INITIALIZED,
     EVENTS,
+    APPEND_EVENTS,
+    MORE_EVENTS,
+    NEXT_CHUNK,
+    WINDOWED,
+    WINDOWS,
+    WINDOW_REQUEST,
+    WINDOW_TAGS,
+    UNCHANGED_WINDOWS,
+    WINDOW_CACHE_BUDGET,
+    DATA_VERSION,
+    BASE_VERSION,
+    DATA_URL,
+    DATASET_ID,
     NEW_EVENT,
     FIELDS,
+    COLUMN_DEFAULTS,
+    GROUP_DEFAULTS,
     HAS_ADDLISTENERS,
     ICON_PREFIX("icon-"),
     ICONALIGN_PREFIX("iconpos-"),
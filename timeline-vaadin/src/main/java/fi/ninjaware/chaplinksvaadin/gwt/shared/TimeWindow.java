@@ -0,0 +1,123 @@
+package fi.ninjaware.chaplinksvaadin.gwt.shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A time window used in windowed loading. The timeline is divided into windows
+ * of equal size, which is a power of two milliseconds chosen by the visible
+ * range. Windows are identified by keys of the form "size:index".
+ *
+ * @author miku
+ */
+public final class TimeWindow implements Serializable {
+
+    /**
+     * Window size in milliseconds.
+     */
+    public final long size;
+
+    /**
+     * Window index. The window starts at <code>index * size</code>.
+     */
+    public final long index;
+
+    public TimeWindow(long size, long index) {
+        this.size = size;
+        this.index = index;
+    }
+
+    /**
+     * Window start in milliseconds.
+     *
+     * @return The start (inclusive).
+     */
+    public long getStart() {
+        return index * size;
+    }
+
+    /**
+     * Window end in milliseconds.
+     *
+     * @return The end (exclusive).
+     */
+    public long getEnd() {
+        return (index + 1) * size;
+    }
+
+    /**
+     * The key identifying the window.
+     *
+     * @return The key.
+     */
+    public String getKey() {
+        return size + ":" + index;
+    }
+
+    /**
+     * Parse a window key.
+     *
+     * @param key The key.
+     * @return The window.
+     * @throws IllegalArgumentException when the key is malformed.
+     */
+    public static TimeWindow parse(String key) {
+        int separator = key.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid window key: " + key);
+        }
+        try {
+            return new TimeWindow(
+                    Long.parseLong(key.substring(0, separator)),
+                    Long.parseLong(key.substring(separator + 1)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid window key: " + key);
+        }
+    }
+
+    /**
+     * Choose the window size for a visible range.
+     *
+     * @param span The length of the visible range in milliseconds.
+     * @return The smallest power of two not less than <code>span</code>.
+     */
+    public static long sizeFor(double span) {
+        long size = 1;
+        while (size < span) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * The window of the given size containing a point in time.
+     *
+     * @param time The point in time in milliseconds.
+     * @param size The window size.
+     * @return The window.
+     */
+    public static TimeWindow containing(double time, long size) {
+        return new TimeWindow(size, (long) Math.floor(time / size));
+    }
+
+    /**
+     * The windows of the given size covering a time range.
+     *
+     * @param start Range start in milliseconds.
+     * @param end Range end in milliseconds.
+     * @param size The window size.
+     * @return The windows in order.
+     */
+    public static List<TimeWindow> covering(double start, double end,
+            long size) {
+        List<TimeWindow> windows = new ArrayList<TimeWindow>();
+        long first = containing(start, size).index;
+        long last = containing(end, size).index;
+        for (long i = first; i <= last; i++) {
+            windows.add(new TimeWindow(size, i));
+        }
+        return windows;
+    }
+
+}
@@ -0,0 +1,174 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import java.util.Collection;
+
+/**
+ * An indexed container counting the calls of the methods that walk the items
+ * of the container it wraps.
+ *
+ * @author miku
+ */
+class CountingContainer implements Container.Indexed {
+
+    private final Container.Indexed container;
+
+    int getItemIds;
+
+    int size;
+
+    int getIdByIndex;
+
+    int indexOfId;
+
+    int nextItemId;
+
+    CountingContainer(Container.Indexed container) {
+        this.container = container;
+    }
+
+    /**
+     * Reset the counters.
+     */
+    void reset() {
+        getItemIds = 0;
+        size = 0;
+        getIdByIndex = 0;
+        indexOfId = 0;
+        nextItemId = 0;
+    }
+
+    @Override
+    public Collection<?> getItemIds() {
+        getItemIds++;
+        return container.getItemIds();
+    }
+
+    @Override
+    public int size() {
+        size++;
+        return container.size();
+    }
+
+    @Override
+    public Object getIdByIndex(int index) {
+        getIdByIndex++;
+        return container.getIdByIndex(index);
+    }
+
+    @Override
+    public int indexOfId(Object itemId) {
+        indexOfId++;
+        return container.indexOfId(itemId);
+    }
+
+    @Override
+    public Object nextItemId(Object itemId) {
+        nextItemId++;
+        return container.nextItemId(itemId);
+    }
+
+    @Override
+    public Item getItem(Object itemId) {
+        return container.getItem(itemId);
+    }
+
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return container.getContainerPropertyIds();
+    }
+
+    @Override
+    public Property getContainerProperty(Object itemId, Object propertyId) {
+        return container.getContainerProperty(itemId, propertyId);
+    }
+
+    @Override
+    public Class<?> getType(Object propertyId) {
+        return container.getType(propertyId);
+    }
+
+    @Override
+    public boolean containsId(Object itemId) {
+        return container.containsId(itemId);
+    }
+
+    @Override
+    public Object prevItemId(Object itemId) {
+        return container.prevItemId(itemId);
+    }
+
+    @Override
+    public Object firstItemId() {
+        return container.firstItemId();
+    }
+
+    @Override
+    public Object lastItemId() {
+        return container.lastItemId();
+    }
+
+    @Override
+    public boolean isFirstId(Object itemId) {
+        return container.isFirstId(itemId);
+    }
+
+    @Override
+    public boolean isLastId(Object itemId) {
+        return container.isLastId(itemId);
+    }
+
+    @Override
+    public Item addItem(Object itemId) {
+        return container.addItem(itemId);
+    }
+
+    @Override
+    public Object addItem() {
+        return container.addItem();
+    }
+
+    @Override
+    public Object addItemAfter(Object previousItemId) {
+        return container.addItemAfter(previousItemId);
+    }
+
+    @Override
+    public Item addItemAfter(Object previousItemId, Object newItemId) {
+        return container.addItemAfter(previousItemId, newItemId);
+    }
+
+    @Override
+    public Object addItemAt(int index) {
+        return container.addItemAt(index);
+    }
+
+    @Override
+    public Item addItemAt(int index, Object newItemId) {
+        return container.addItemAt(index, newItemId);
+    }
+
+    @Override
+    public boolean removeItem(Object itemId) {
+        return container.removeItem(itemId);
+    }
+
+    @Override
+    public boolean addContainerProperty(Object propertyId, Class<?> type,
+            Object defaultValue) {
+        return container.addContainerProperty(propertyId, type, defaultValue);
+    }
+
+    @Override
+    public boolean removeContainerProperty(Object propertyId) {
+        return container.removeContainerProperty(propertyId);
+    }
+
+    @Override
+    public boolean removeAllItems() {
+        return container.removeAllItems();
+    }
+
+}
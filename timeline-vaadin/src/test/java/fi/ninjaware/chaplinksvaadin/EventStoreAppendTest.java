@@ -0,0 +1,193 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Container;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Appending events to an event store from many threads.
+ *
+ * @author miku
+ */
+public class EventStoreAppendTest {
+
+    /**
+     * The numbers of producer threads tested.
+     */
+    private static final int[] PRODUCERS = {1, 2, 4, 8};
+
+    private static final int EVENTS_PER_PRODUCER = 20000;
+
+    /**
+     * Appends events of its own group to a store.
+     */
+    private static class Producer extends Thread {
+
+        private final EventStore store;
+
+        private final int number;
+
+        private final CountDownLatch start;
+
+        private final boolean interleave;
+
+        Producer(EventStore store, int number, CountDownLatch start,
+                boolean interleave) {
+            this.store = store;
+            this.number = number;
+            this.start = start;
+            this.interleave = interleave;
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            String group = "Group " + number;
+            for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                store.append(new TimelineEvent(new Date(i), null,
+                        String.valueOf(i), group));
+                if (interleave && i % 64 == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Run the producers and wait for them to finish.
+     *
+     * @param count The number of producers.
+     * @param interleave True to let the other threads run every now and
+     * then, even on a single core.
+     */
+    private static void produce(EventStore store, int count,
+            boolean interleave) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Producer> producers = new ArrayList<Producer>();
+        for (int p = 0; p < count; p++) {
+            Producer producer = new Producer(store, p, start, interleave);
+            producer.start();
+            producers.add(producer);
+        }
+
+        start.countDown();
+        for (Producer producer : producers) {
+            producer.join();
+        }
+    }
+
+    /**
+     * Check that every appended event is in the container once, and the
+     * events of each producer are in the order they were appended.
+     *
+     * @param count The number of producers.
+     */
+    private static void assertAllEvents(Container container, int count) {
+        assertEquals(count * EVENTS_PER_PRODUCER, container.size());
+        Map<Object, Integer> next = new HashMap<Object, Integer>();
+        for (Object itemId : container.getItemIds()) {
+            Object group = container.getContainerProperty(itemId,
+                    EventFields.GROUP).getValue();
+            Integer expected = next.get(group);
+            if (expected == null) {
+                expected = 0;
+            }
+            assertEquals(String.valueOf(expected), container
+                    .getContainerProperty(itemId, EventFields.CONTENT)
+                    .getValue());
+            next.put(group, expected + 1);
+        }
+        assertEquals(count, next.size());
+        for (Integer appended : next.values()) {
+            assertEquals(EVENTS_PER_PRODUCER, appended.intValue());
+        }
+    }
+
+    /**
+     * A flush adds all the appended events, with a single append buffer and
+     * with striped ones.
+     */
+    @Test
+    public void testAppend() throws Exception {
+        for (int count : PRODUCERS) {
+            for (int stripes : new int[]{1, 16}) {
+                EventStore store = new EventStore(stripes);
+                produce(store, count, false);
+                assertAllEvents(store.flush(), count);
+            }
+        }
+    }
+
+    /**
+     * A reader flushing only when notified, like Timeline, must see every
+     * event appended while it was flushing.
+     */
+    @Test
+    public void testAppendRacingFlush() throws Exception {
+        for (int count : PRODUCERS) {
+            assertAppendRacingFlush(count);
+        }
+    }
+
+    private static void assertAppendRacingFlush(int count) throws Exception {
+        final EventStore store = new EventStore(4);
+        final AtomicBoolean dirty = new AtomicBoolean();
+        final AtomicInteger notifications = new AtomicInteger();
+        store.addListener(new Container.ItemSetChangeListener() {
+
+            @Override
+            public void containerItemSetChange(
+                    Container.ItemSetChangeEvent event) {
+                notifications.incrementAndGet();
+                dirty.set(true);
+            }
+
+        });
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger flushes = new AtomicInteger();
+        final EventStore.Snapshot[] seen = {store.snapshot()};
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    if (dirty.getAndSet(false)) {
+                        seen[0] = store.flush();
+                        flushes.incrementAndGet();
+                    } else if (done.get()) {
+                        return;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+
+        };
+        reader.start();
+
+        produce(store, count, true);
+        done.set(true);
+        reader.join();
+
+        assertTrue(notifications.get() >= 1);
+        assertTrue(notifications.get() <= flushes.get());
+        assertAllEvents(seen[0], count);
+    }
+
+}
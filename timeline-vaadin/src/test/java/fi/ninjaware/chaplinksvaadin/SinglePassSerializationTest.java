@@ -0,0 +1,74 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.IndexedContainer;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import java.util.Collections;
+import java.util.Date;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.JS_INITIALIZED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Serializing the events walks the event container once, whatever the number
+ * of events.
+ *
+ * @author miku
+ */
+public class SinglePassSerializationTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static CountingContainer createEvents(int count) {
+        IndexedContainer c = new IndexedContainer();
+        c.addContainerProperty(EventFields.START, Date.class, null);
+        c.addContainerProperty(EventFields.END, Date.class, null);
+        c.addContainerProperty(EventFields.CONTENT, String.class, null);
+        c.addContainerProperty(EventFields.GROUP, String.class, null);
+        for (int i = 0; i < count; i++) {
+            Item item = c.getItem(c.addItem());
+            item.getItemProperty(EventFields.START).setValue(
+                    new Date(i * DAY));
+            item.getItemProperty(EventFields.END).setValue(
+                    new Date(i * DAY + DAY / 2));
+            item.getItemProperty(EventFields.CONTENT).setValue("Event " + i);
+            item.getItemProperty(EventFields.GROUP).setValue(
+                    "Group " + (i % 10));
+        }
+        return new CountingContainer(c);
+    }
+
+    private static Timeline createTimeline() {
+        Timeline timeline = new Timeline();
+        timeline.changeVariables(timeline, Collections.<String, Object>
+                singletonMap(JS_INITIALIZED.v, Boolean.TRUE));
+        return timeline;
+    }
+
+    private static void assertSinglePass(int count) throws Exception {
+        CountingContainer events = createEvents(count);
+        Timeline timeline = createTimeline();
+
+        timeline.setEventDataSource(events);
+
+        assertTrue("The events weren't serialized",
+                timeline.getDataVersion() > 0);
+        assertEquals(1, events.getItemIds);
+        assertEquals(0, events.size);
+        assertEquals(0, events.getIdByIndex);
+        assertEquals(0, events.indexOfId);
+        assertEquals(0, events.nextItemId);
+    }
+
+    @Test
+    public void testSmallContainer() throws Exception {
+        assertSinglePass(10);
+    }
+
+    @Test
+    public void testLargeContainer() throws Exception {
+        assertSinglePass(50000);
+    }
+
+}
@@ -0,0 +1,61 @@
+package fi.ninjaware.chaplinksvaadin;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.IndexedContainer;
+import fi.ninjaware.chaplinksvaadin.Timeline.EventFields;
+import java.util.Collections;
+import java.util.Date;
+import static fi.ninjaware.chaplinksvaadin.gwt.shared.Shared.JS_INITIALIZED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Test;
+
+/**
+ * The URLs of the HTTP data channel depend only on the window contents.
+ *
+ * @author miku
+ */
+public class WindowDataTagTest {
+
+    private static IndexedContainer createEvents() {
+        IndexedContainer c = new IndexedContainer();
+        c.addContainerProperty(EventFields.START, Date.class, null);
+        c.addContainerProperty(EventFields.CONTENT, String.class, null);
+        for (int i = 0; i < 100; i++) {
+            Item item = c.getItem(c.addItem());
+            item.getItemProperty(EventFields.START).setValue(new Date(i));
+            item.getItemProperty(EventFields.CONTENT).setValue("Event " + i);
+        }
+        return c;
+    }
+
+    private static Timeline createTimeline(IndexedContainer events)
+            throws Exception {
+        Timeline timeline = new Timeline();
+        timeline.changeVariables(timeline, Collections.<String, Object>
+                singletonMap(JS_INITIALIZED.v, Boolean.TRUE));
+        timeline.setWindowedLoading(true);
+        timeline.setHttpDataChannel(true);
+        timeline.setEventDataSource(events);
+        return timeline;
+    }
+
+    @Test
+    public void testSameContentsSameTag() throws Exception {
+        String first = createTimeline(createEvents()).getWindowDataTag();
+        String second = createTimeline(createEvents()).getWindowDataTag();
+        assertNotNull(first);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testChangedContentsNewTag() throws Exception {
+        IndexedContainer changed = createEvents();
+        changed.getContainerProperty(changed.getIdByIndex(50),
+                EventFields.CONTENT).setValue("Changed");
+        assertFalse(createTimeline(createEvents()).getWindowDataTag()
+                .equals(createTimeline(changed).getWindowDataTag()));
+    }
+
+}